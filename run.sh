@@ -1,7 +1,7 @@
 #!/usr/bin/env bash
 mkdir -p output
-for i in `seq 5`
+for i in `seq 17`
 do
     echo "Running test${i}"
-    java -jar RepCRec.jar input/test${i} > output/out${i}
+    java -jar RepCRec.jar `cat input/test${i}.options 2>/dev/null` input/test${i} > output/out${i}
 done
\ No newline at end of file
@@ -0,0 +1,246 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class limits the number of active read-write transactions, and adapts the limit to
+ * contention by additive increase and multiplicative decrease. Over every window of ticks, the
+ * limit is halved if a deadlock was found, too many finished transactions aborted or too many
+ * active transactions were blocked, and is raised by one if begins had to queue, up to the
+ * configured maximum. A begin beyond the limit queues, and commands of a queued transaction are
+ * deferred with it. Once admitted, its commands run in order whenever the transaction is not
+ * blocked, at the time of the latest command.
+ * @version 12/09/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class AdmissionController {
+    private static final int WINDOW_SIZE = 16;
+    private static final double MAX_ABORT_RATE = 0.2;
+    private static final double MAX_BLOCKED_FRACTION = 0.5;
+    private static final int NO_TRANSACTION = -1;
+
+    private int maxLimit;
+    private int limit;
+    private int activeCount;
+    private Set<Integer> queuedTransactionIds;                  // transactionIds in order of begin
+    private Map<Integer, Deque<Runnable>> deferredCommands;     // <transactionId, deferred commands>
+    private int runningTransactionId;
+    private long timestamp;
+    private int windowTicks;
+    private int commitCount;
+    private int abortCount;
+    private int deadlockCount;
+    private long blockedSum;
+    private long activeSum;
+    private boolean hasQueued;
+    private int admittedCount;
+    private int totalQueuedCount;
+    private int longestQueue;
+    private int increaseCount;
+    private int decreaseCount;
+
+    public AdmissionController(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException(String.format("invalid admission limit %d", n));
+        }
+        maxLimit = n;
+        limit = n;
+        activeCount = 0;
+        queuedTransactionIds = new LinkedHashSet<>();
+        deferredCommands = new LinkedHashMap<>();
+        runningTransactionId = NO_TRANSACTION;
+        timestamp = 0;
+        resetWindow();
+        admittedCount = 0;
+        totalQueuedCount = 0;
+        longestQueue = 0;
+        increaseCount = 0;
+        decreaseCount = 0;
+    }
+
+    /**
+     * Notes the timestamp of a command, so that deferred commands run at the latest time.
+     * @param ts timestamp
+     */
+    public void setTimestamp(long ts) {
+        timestamp = Math.max(timestamp, ts);
+    }
+
+    /**
+     * Gets the timestamp of the latest command.
+     * @return timestamp
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Admits a begin right away if no begin is queued and the limit is not reached.
+     * @return whether the begin is admitted
+     */
+    public boolean tryAdmit() {
+        if (!queuedTransactionIds.isEmpty() || activeCount >= limit) {
+            return false;
+        }
+        activeCount++;
+        admittedCount++;
+        return true;
+    }
+
+    /**
+     * Queues the begin of a transaction, which is its first deferred command.
+     * @param tid transactionId
+     * @param begin begin
+     */
+    public void enqueue(int tid, Runnable begin) {
+        queuedTransactionIds.add(tid);
+        deferredCommands.computeIfAbsent(tid, k -> new ArrayDeque<>()).add(begin);
+        totalQueuedCount++;
+        longestQueue = Math.max(longestQueue, queuedTransactionIds.size());
+    }
+
+    /**
+     * Returns whether commands of a transaction are deferred, which is while it is queued or
+     * has earlier commands deferred, except for the command running now.
+     * @param tid transactionId
+     * @return boolean
+     */
+    public boolean isDeferred(int tid) {
+        return tid != runningTransactionId && deferredCommands.containsKey(tid);
+    }
+
+    /**
+     * Defers a command of a transaction after its earlier ones.
+     * @param tid transactionId
+     * @param command command
+     */
+    public void defer(int tid, Runnable command) {
+        deferredCommands.get(tid).add(command);
+    }
+
+    /**
+     * Admits queued begins in order while the limit is not reached.
+     */
+    public void admitQueued() {
+        while (!queuedTransactionIds.isEmpty() && activeCount < limit) {
+            queuedTransactionIds.remove(queuedTransactionIds.iterator().next());
+            activeCount++;
+            admittedCount++;
+        }
+    }
+
+    /**
+     * Gets transactionIds of admitted transactions with deferred commands.
+     * @return transactionIds
+     */
+    public List<Integer> getAdmittedTransactionIds() {
+        List<Integer> transactionIds = new ArrayList<>();
+        for (int tid : deferredCommands.keySet()) {
+            if (!queuedTransactionIds.contains(tid)) {
+                transactionIds.add(tid);
+            }
+        }
+        return transactionIds;
+    }
+
+    /**
+     * Runs the next deferred command of an admitted transaction.
+     * @param tid transactionId
+     */
+    public void runNext(int tid) {
+        Deque<Runnable> commands = deferredCommands.get(tid);
+        Runnable command = commands.poll();
+        if (commands.isEmpty()) {
+            deferredCommands.remove(tid);
+        }
+        runningTransactionId = tid;
+        try {
+            command.run();
+        } finally {
+            runningTransactionId = NO_TRANSACTION;
+        }
+    }
+
+    /**
+     * Releases the slot of an admitted transaction that commits or aborts.
+     * @param isCommitted whether the transaction commits
+     */
+    public void release(boolean isCommitted) {
+        activeCount--;
+        if (isCommitted) {
+            commitCount++;
+        } else {
+            abortCount++;
+        }
+    }
+
+    /**
+     * Records a deadlock.
+     */
+    public void recordDeadlock() {
+        deadlockCount++;
+    }
+
+    /**
+     * Advances time by one tick, adapting the limit at the end of a window.
+     * @param blockedCount number of active read-write transactions that are blocked
+     */
+    public void tick(int blockedCount) {
+        windowTicks++;
+        blockedSum += blockedCount;
+        activeSum += activeCount;
+        hasQueued = hasQueued || !queuedTransactionIds.isEmpty();
+        if (windowTicks < WINDOW_SIZE) {
+            return;
+        }
+        int finishedCount = commitCount + abortCount;
+        double abortRate = finishedCount == 0 ? 0.0 : (double) abortCount / finishedCount;
+        double blockedFraction = activeSum == 0 ? 0.0 : (double) blockedSum / activeSum;
+        if (deadlockCount > 0 || abortRate > MAX_ABORT_RATE || blockedFraction > MAX_BLOCKED_FRACTION) {
+            if (limit > 1) {
+                limit = Math.max(1, limit / 2);
+                decreaseCount++;
+            }
+        } else if (hasQueued && limit < maxLimit) {
+            limit++;
+            increaseCount++;
+        }
+        resetWindow();
+    }
+
+    /**
+     * Clears the counters of the window.
+     */
+    private void resetWindow() {
+        windowTicks = 0;
+        commitCount = 0;
+        abortCount = 0;
+        deadlockCount = 0;
+        blockedSum = 0;
+        activeSum = 0;
+        hasQueued = false;
+    }
+
+    /**
+     * Gets the current limit.
+     * @return limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Gives the stats of admission control.
+     * @return stats
+     */
+    public String getStats() {
+        return String.format("admission - limit: %d, max limit: %d, admitted: %d, queued: %d, still queued: %d, "
+                        + "longest queue: %d, increases: %d, decreases: %d", limit, maxLimit, admittedCount,
+                totalQueuedCount, queuedTransactionIds.size(), longestQueue, increaseCount, decreaseCount);
+    }
+}
@@ -0,0 +1,63 @@
+import java.lang.management.ManagementFactory;
+import java.util.function.LongConsumer;
+
+/**
+ * This class measures the bytes allocated per read and write that does not wait, after a warm-up
+ * pass, with events of the transaction manager suppressed. Usage: {@code AllocationBenchmark [n]},
+ * where n is the number of operations measured for each kind (1000000 by default).
+ * @version 12/07/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class AllocationBenchmark {
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        runAll(n, false);
+        runAll(n, true);
+    }
+
+    /**
+     * Measures every kind of operation on both kinds of storage.
+     * @param n number of operations
+     * @param isPrinting whether to give the results, which is false for a warm-up pass
+     */
+    private static void runAll(int n, boolean isPrinting) {
+        for (String storage : new String[] {"heap", "offheap"}) {
+            TransactionManager transactionManager = new TransactionManager();
+            if (storage.equals("offheap")) {
+                transactionManager.setOffHeapStorage();
+            }
+            transactionManager.setOutput(null);
+            transactionManager.begin(1, 1);
+            transactionManager.beginRO(2, 2);
+            measure(isPrinting ? storage + " read x1 (one copy)" : null, n, ts -> transactionManager.read(1, 1, ts));
+            measure(isPrinting ? storage + " read x2 (replicated)" : null, n, ts -> transactionManager.read(1, 2, ts));
+            measure(isPrinting ? storage + " read-only read x2" : null, n, ts -> transactionManager.read(2, 2, ts));
+            measure(isPrinting ? storage + " write x1 (one copy)" : null, n, ts -> transactionManager.write(1, 1, (int) ts, ts));
+            measure(isPrinting ? storage + " write x2 (replicated)" : null, n, ts -> transactionManager.write(1, 2, (int) ts, ts));
+        }
+    }
+
+    /**
+     * Runs an operation n times to warm up, and n more times measuring allocation of this thread.
+     * @param name name of the operation, or null to give no result
+     * @param n number of operations
+     * @param operation operation taking a timestamp
+     */
+    private static void measure(String name, int n, LongConsumer operation) {
+        for (int i = 0; i < n; i++) {
+            operation.accept(3 + i);
+        }
+        long threadId = Thread.currentThread().getId();
+        long allocatedBytes = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < n; i++) {
+            operation.accept(3 + n + i);
+        }
+        allocatedBytes = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId) - allocatedBytes;
+        if (name != null) {
+            System.out.println(String.format("%s - bytes per operation: %.2f", name, (double) allocatedBytes / n));
+        }
+    }
+}
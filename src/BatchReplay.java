@@ -0,0 +1,156 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This class replays many traces in parallel on a fork-join pool. Every trace is replayed on
+ * transaction managers of its own, so traces share no state, and its events go to a file named
+ * after the trace in the output directory. The summary gives the time of every trace, and the
+ * wall time of the batch against the sum of the times of its traces.
+ * @version 12/07/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class BatchReplay {
+    private List<Consumer<TransactionManager>> settings;
+    private int partitionCount;
+    private String coordinatorLogPath;
+    private int logGroupSize;
+    private boolean printReadStats;
+    private boolean printTransportStats;
+
+    public BatchReplay(List<Consumer<TransactionManager>> s, int pc, String lp, int lg, boolean rs, boolean ts) {
+        settings = s;
+        partitionCount = pc;
+        coordinatorLogPath = lp;
+        logGroupSize = lg;
+        printReadStats = rs;
+        printTransportStats = ts;
+    }
+
+    /**
+     * This class represents the result of replaying a trace.
+     */
+    private static class TraceResult {
+        private String name;
+        private int commandCount;
+        private long nanos;
+        private Exception error;
+
+        private TraceResult(String n) {
+            name = n;
+            commandCount = 0;
+            nanos = 0;
+            error = null;
+        }
+    }
+
+    /**
+     * Replays every trace and gives the summary.
+     * @param tracesPath directory of traces, or file listing a trace path per line
+     * @param outputPath directory of outputs
+     * @param threadCount number of threads
+     * @throws IOException if fails to find the traces or to create the output directory
+     * @throws InterruptedException if interrupted while waiting for the traces
+     * @throws ExecutionException if a trace fails unexpectedly
+     */
+    public void run(String tracesPath, String outputPath, int threadCount)
+            throws IOException, InterruptedException, ExecutionException {
+        List<Path> traces = getTraces(Path.of(tracesPath));
+        Path outputDirectory = Path.of(outputPath);
+        Files.createDirectories(outputDirectory);
+        List<Callable<TraceResult>> tasks = new ArrayList<>();
+        for (Path trace : traces) {
+            tasks.add(() -> replay(trace, outputDirectory));
+        }
+        ForkJoinPool pool = new ForkJoinPool(threadCount);
+        long start = System.nanoTime();
+        List<Future<TraceResult>> futures;
+        try {
+            futures = pool.invokeAll(tasks);
+        } finally {
+            pool.shutdown();
+        }
+        long wallNanos = System.nanoTime() - start;
+        int failedCount = 0;
+        long commandCount = 0;
+        long replayNanos = 0;
+        for (Future<TraceResult> future : futures) {
+            TraceResult result = future.get();
+            if (result.error != null) {
+                failedCount++;
+            }
+            commandCount += result.commandCount;
+            replayNanos += result.nanos;
+            System.out.println(String.format("batch - %s: %s, commands: %d, time: %.3f ms", result.name,
+                    result.error == null ? "ok" : "failed (" + result.error + ")", result.commandCount,
+                    result.nanos / 1e6));
+        }
+        System.out.println(String.format("batch - traces: %d, failed: %d, commands: %d, threads: %d, "
+                        + "wall time: %.3f ms, replay time: %.3f ms, speedup: %.2f",
+                traces.size(), failedCount, commandCount, threadCount, wallNanos / 1e6, replayNanos / 1e6,
+                wallNanos == 0 ? 0.0 : (double) replayNanos / wallNanos));
+    }
+
+    /**
+     * Gets the traces of a directory, sorted by name, or the traces listed in a file.
+     * @param path directory or file
+     * @return traces
+     * @throws IOException if fails to read
+     */
+    private static List<Path> getTraces(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> paths = Files.list(path)) {
+                return paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+        }
+        List<Path> traces = new ArrayList<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            if (!line.trim().isEmpty()) {
+                traces.add(Path.of(line.trim()));
+            }
+        }
+        return traces;
+    }
+
+    /**
+     * Replays a trace on transaction managers of its own, giving its events to its output file.
+     * @param trace trace
+     * @param outputDirectory directory of outputs
+     * @return result
+     * @throws IOException if fails to create the output file
+     */
+    private TraceResult replay(Path trace, Path outputDirectory) throws IOException {
+        TraceResult result = new TraceResult(trace.getFileName().toString());
+        Path outputFile = outputDirectory.resolve(result.name + ".out");
+        try (PrintStream output = new PrintStream(new BufferedOutputStream(Files.newOutputStream(outputFile)),
+                false, StandardCharsets.UTF_8)) {
+            long start = System.nanoTime();
+            List<Consumer<TransactionManager>> traceSettings = new ArrayList<>(settings);
+            traceSettings.add(Database.getCoordinatorLogSetting(coordinatorLogPath == null ? null
+                    : coordinatorLogPath + "." + result.name, logGroupSize, partitionCount));
+            List<TransactionManager> transactionManagers =
+                    Database.createTransactionManagers(traceSettings, partitionCount, output);
+            try {
+                result.commandCount = Database.replay(transactionManagers.get(0), trace.toString());
+            } catch (Exception e) {
+                result.error = e;
+                e.printStackTrace(output);
+            }
+            Database.finish(transactionManagers, printReadStats, printTransportStats);
+            result.nanos = System.nanoTime() - start;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,273 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * This class measures the whole engine by replaying a trace many times with events suppressed.
+ * The trace is a given binary trace, or a given text trace or a trace generated from a seed
+ * against the same settings, so that no command goes to a blocked transaction. A text trace is
+ * encoded into a temporary binary trace before replaying, so that parsing the text is not
+ * measured. Every replay runs on transaction managers of its own, and warm-up replays are not
+ * measured. A result gives commands and commits per second, aborts by reason, percentiles of
+ * block latencies in operations, and bytes allocated per command, for every measured replay and
+ * for all of them, as CSV or JSON.
+ * @version 12/10/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class Benchmark {
+    public enum Format {
+        CSV, JSON
+    }
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final long SEED = 42;
+    private static final int GENERATED_COMMAND_COUNT = 20000;
+    private static final int MAX_ACTIVE_COUNT = 8;
+    private static final int MAX_FAILED_SITE_COUNT = 2;
+
+    private List<Consumer<TransactionManager>> settings;
+    private int partitionCount;
+
+    public Benchmark(List<Consumer<TransactionManager>> s, int pc) {
+        settings = s;
+        partitionCount = pc;
+    }
+
+    /**
+     * This class represents the result of a measured replay.
+     */
+    private static class Result {
+        private String name;
+        private long commandCount;
+        private long nanos;
+        private long allocatedBytes;
+        private EngineStats stats;
+
+        private Result(String n) {
+            name = n;
+            commandCount = 0;
+            nanos = 0;
+            allocatedBytes = 0;
+            stats = new EngineStats();
+        }
+    }
+
+    /**
+     * Replays a trace after warm-up replays and gives the results.
+     * @param tracePath path of the trace, or null to generate one
+     * @param warmupCount number of warm-up replays
+     * @param iterationCount number of measured replays
+     * @param format format of results
+     * @param outputPath path of the results file, or null for the console
+     * @throws IOException if fails to read the trace or to write the results
+     */
+    public void run(String tracePath, int warmupCount, int iterationCount, Format format, String outputPath)
+            throws IOException {
+        Path encodedTracePath = null;
+        if (tracePath == null) {
+            encodedTracePath = encode(generateTrace(new Random(SEED), GENERATED_COMMAND_COUNT));
+        } else if (!BinaryTrace.isBinaryTrace(tracePath)) {
+            encodedTracePath = encode(Files.readAllLines(Path.of(tracePath), StandardCharsets.UTF_8));
+        }
+        String binaryTracePath = encodedTracePath == null ? tracePath : encodedTracePath.toString();
+        List<Result> results = new ArrayList<>();
+        Result total = new Result("total");
+        try {
+            for (int i = 0; i < warmupCount; i++) {
+                replay(binaryTracePath, "warmup");
+            }
+            for (int i = 0; i < iterationCount; i++) {
+                Result result = replay(binaryTracePath, String.valueOf(i + 1));
+                results.add(result);
+                total.commandCount += result.commandCount;
+                total.nanos += result.nanos;
+                total.allocatedBytes += result.allocatedBytes;
+                total.stats.add(result.stats);
+            }
+        } finally {
+            if (encodedTracePath != null) {
+                Files.deleteIfExists(encodedTracePath);
+            }
+        }
+        results.add(total);
+        if (outputPath == null) {
+            print(System.out, results, format);
+        } else {
+            try (PrintStream output = new PrintStream(Files.newOutputStream(Path.of(outputPath)), false,
+                    StandardCharsets.UTF_8)) {
+                print(output, results, format);
+            }
+        }
+    }
+
+    /**
+     * Encodes commands of a text trace into a temporary binary trace without timestamps, so that
+     * commands are timestamped by their line numbers as in the text trace.
+     * @param lines commands
+     * @return path of the binary trace
+     * @throws IOException if fails to write the binary trace
+     */
+    private static Path encode(List<String> lines) throws IOException {
+        Path path = Files.createTempFile("bench-", ".trace");
+        path.toFile().deleteOnExit();
+        try (BinaryTrace.Recorder recorder = new BinaryTrace.Recorder(path.toString(), false)) {
+            for (int i = 0; i < lines.size(); i++) {
+                recorder.record(lines.get(i), i + 1);
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Replays a binary trace once on transaction managers of its own, measuring time and
+     * allocation of this thread.
+     * @param tracePath path of the binary trace
+     * @param name name of the replay
+     * @return result
+     * @throws IOException if fails to read the binary trace
+     */
+    private Result replay(String tracePath, String name) throws IOException {
+        Result result = new Result(name);
+        List<TransactionManager> transactionManagers = createTransactionManagers(result.stats);
+        TransactionManager transactionManager = transactionManagers.get(0);
+        long threadId = Thread.currentThread().getId();
+        long allocatedBytes = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        result.commandCount = BinaryTrace.replay(transactionManager, tracePath);
+        result.nanos = System.nanoTime() - start;
+        result.allocatedBytes = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId) - allocatedBytes;
+        Database.finish(transactionManagers, false, false);
+        return result;
+    }
+
+    /**
+     * Creates transaction managers with the settings, counting in the given stats, with events
+     * suppressed.
+     * @param stats stats
+     * @return transactionManagers
+     */
+    private List<TransactionManager> createTransactionManagers(EngineStats stats) {
+        List<Consumer<TransactionManager>> replaySettings = new ArrayList<>(settings);
+        replaySettings.add(tm -> tm.setStats(stats));
+        return Database.createTransactionManagers(replaySettings, partitionCount, null);
+    }
+
+    /**
+     * Generates a trace of read-write and read-only transactions with site failures, executing
+     * every command while generating it, so that commands go to transactions that are not blocked.
+     * A transaction begins beyond the maximum number of active ones if all of them are blocked.
+     * @param random random
+     * @param commandCount number of commands
+     * @return commands
+     */
+    private List<String> generateTrace(Random random, int commandCount) {
+        EngineStats stats = new EngineStats();
+        List<TransactionManager> transactionManagers = createTransactionManagers(stats);
+        TransactionManager transactionManager = transactionManagers.get(0);
+        TimestampOracle.Clock clock = transactionManager.getTimestampOracle().newClock();
+        List<String> lines = new ArrayList<>();
+        List<Integer> activeTransactionIds = new ArrayList<>();
+        List<Integer> readOnlyTransactionIds = new ArrayList<>();
+        List<Integer> failedSiteIds = new ArrayList<>();
+        int nextTransactionId = 1;
+        while (lines.size() < commandCount) {
+            List<Integer> runnableTransactionIds = new ArrayList<>();
+            for (int tid : activeTransactionIds) {
+                if (!stats.isBlocked(tid)) {
+                    runnableTransactionIds.add(tid);
+                }
+            }
+            String line;
+            double choice = random.nextDouble();
+            if (choice < 0.005 && failedSiteIds.size() < MAX_FAILED_SITE_COUNT) {
+                int sid = 1 + random.nextInt(TransactionManager.SITE_COUNT);
+                if (!failedSiteIds.contains(sid)) {
+                    failedSiteIds.add(sid);
+                }
+                line = String.format("fail(%d)", sid);
+            } else if (!failedSiteIds.isEmpty() && (choice < 0.015 || runnableTransactionIds.isEmpty())) {
+                line = String.format("recover(%d)", failedSiteIds.remove(random.nextInt(failedSiteIds.size())));
+            } else if (runnableTransactionIds.isEmpty()
+                    || (activeTransactionIds.size() < MAX_ACTIVE_COUNT && choice < 0.25)) {
+                int tid = nextTransactionId++;
+                activeTransactionIds.add(tid);
+                if (random.nextInt(10) == 0) {
+                    readOnlyTransactionIds.add(tid);
+                    line = String.format("beginRO(T%d)", tid);
+                } else {
+                    line = String.format("begin(T%d)", tid);
+                }
+            } else {
+                int tid = runnableTransactionIds.get(random.nextInt(runnableTransactionIds.size()));
+                int vid = 1 + random.nextInt(DataManager.VARIABLE_COUNT);
+                double operationChoice = random.nextDouble();
+                if (operationChoice < 0.15) {
+                    activeTransactionIds.remove((Integer) tid);
+                    readOnlyTransactionIds.remove((Integer) tid);
+                    line = String.format("end(T%d)", tid);
+                } else if (operationChoice < 0.6 || readOnlyTransactionIds.contains(tid)) {
+                    line = String.format("R(T%d,x%d)", tid, vid);
+                } else {
+                    line = String.format("W(T%d,x%d,%d)", tid, vid, random.nextInt(1000));
+                }
+            }
+            lines.add(line);
+            Database.execute(transactionManager, line, clock.next());
+        }
+        Database.finish(transactionManagers, false, false);
+        return lines;
+    }
+
+    /**
+     * Gives the results as CSV with a header, or as a JSON array.
+     * @param output output
+     * @param results results of measured replays and their total
+     * @param format format
+     */
+    private static void print(PrintStream output, List<Result> results, Format format) {
+        if (Format.CSV.equals(format)) {
+            output.println("iteration,commands,seconds,ops_per_sec,commits_per_sec,commits,deadlock_aborts,"
+                    + "site_failure_aborts,no_vote_aborts,validation_aborts,blocks,p50_block_ops,p99_block_ops,"
+                    + "p999_block_ops,bytes_per_op");
+        } else {
+            output.println("[");
+        }
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            EngineStats stats = result.stats;
+            double seconds = result.nanos / 1e9;
+            long commandCount = result.commandCount;
+            Object[] values = {result.name, commandCount, seconds,
+                    seconds == 0 ? 0.0 : commandCount / seconds,
+                    seconds == 0 ? 0.0 : stats.getCommitCount() / seconds, stats.getCommitCount(),
+                    stats.getAbortCount(EngineStats.AbortReason.DEADLOCK),
+                    stats.getAbortCount(EngineStats.AbortReason.SITE_FAILURE),
+                    stats.getAbortCount(EngineStats.AbortReason.NO_VOTE),
+                    stats.getAbortCount(EngineStats.AbortReason.VALIDATION), stats.getBlockCount(),
+                    stats.getBlockLatencyPercentile(50), stats.getBlockLatencyPercentile(99),
+                    stats.getBlockLatencyPercentile(99.9),
+                    commandCount == 0 ? 0.0 : (double) result.allocatedBytes / commandCount};
+            if (Format.CSV.equals(format)) {
+                output.println(String.format(Locale.ROOT, "%s,%d,%.6f,%.1f,%.1f,%d,%d,%d,%d,%d,%d,%d,%d,%d,%.1f", values));
+            } else {
+                output.println(String.format(Locale.ROOT, "  {\"iteration\": \"%s\", \"commands\": %d, \"seconds\": %.6f, "
+                        + "\"ops_per_sec\": %.1f, \"commits_per_sec\": %.1f, \"commits\": %d, "
+                        + "\"aborts\": {\"deadlock\": %d, \"site_failure\": %d, \"no_vote\": %d, \"validation\": %d}, "
+                        + "\"blocks\": %d, \"block_latency_ops\": {\"p50\": %d, \"p99\": %d, \"p999\": %d}, "
+                        + "\"bytes_per_op\": %.1f}", values) + (i < results.size() - 1 ? "," : ""));
+            }
+        }
+        if (Format.JSON.equals(format)) {
+            output.println("]");
+        }
+    }
+}
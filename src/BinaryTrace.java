@@ -0,0 +1,374 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class encodes the command stream in a compact binary form, and replays it from a memory
+ * mapped file. A trace starts with the magic number, a version and flags. Every command is an
+ * opcode byte, followed by the difference from the timestamp of the previous command as a varlong
+ * if the flags say timestamps are embedded, and by its operands as varints. Values and priorities are zigzag
+ * encoded, and a blob is its length followed by its bytes. Without embedded timestamps, commands
+ * are timestamped by a clock of the timestamp oracle, as lines of a text trace are. Usage:
+ * {@code BinaryTrace [--timestamps] input output} converts a text trace.
+ * @version 12/08/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class BinaryTrace {
+    public enum Opcode {
+        BEGIN, BEGIN_RO, READ, WRITE, WRITE_BLOB, FAIL, RECOVER, END, DUMP, READ_FOR_UPDATE
+    }
+
+    private static final int MAGIC = 0x52435452;    // "RCTR"
+    private static final int VERSION = 1;
+    private static final int HAS_TIMESTAMPS = 1;
+    private static final int HEADER_SIZE = 6;
+    private static final int MAX_COMMAND_HEADER_SIZE = 1 + 10 + 3 * 5;
+    private static final long WINDOW_SIZE = 1L << 30;
+    private static final Opcode[] OPCODES = Opcode.values();
+
+    public static void main(String[] args) throws IOException {
+        boolean hasTimestamps = args[0].equals("--timestamps");
+        int i = hasTimestamps ? 1 : 0;
+        int commandCount = 0;
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(args[i]));
+             Recorder recorder = new Recorder(args[i + 1], hasTimestamps)) {
+            String line = bufferedReader.readLine();
+            while (line != null) {
+                commandCount++;
+                recorder.record(line, commandCount);
+                line = bufferedReader.readLine();
+            }
+        }
+        System.out.println(String.format("trace - commands: %d, bytes: %d", commandCount, Files.size(Path.of(args[i + 1]))));
+    }
+
+    /**
+     * This class records commands into a binary trace.
+     */
+    public static class Recorder implements Closeable {
+        private OutputStream output;
+        private ByteArrayOutputStream command;     // command being encoded, appended once complete
+        private boolean hasTimestamps;
+        private long lastTimestamp;
+
+        public Recorder(String path, boolean t) throws IOException {
+            output = new BufferedOutputStream(new FileOutputStream(path), 1 << 16);
+            command = new ByteArrayOutputStream();
+            hasTimestamps = t;
+            lastTimestamp = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+            header.putInt(MAGIC).put((byte) VERSION).put((byte) (hasTimestamps ? HAS_TIMESTAMPS : 0));
+            output.write(header.array());
+        }
+
+        /**
+         * Records a command of the text grammar. A line that is no other command is a dump, as
+         * it is when executed. The command is encoded into a scratch buffer and appended to the
+         * trace only once all of its operands are parsed, so a malformed line leaves the trace as
+         * it was.
+         * @param line command
+         * @param ts timestamp
+         * @throws IOException if fails to write
+         * @throws IllegalArgumentException if the line is malformed
+         */
+        public void record(String line, long ts) throws IOException {
+            command.reset();
+            try {
+                encode(line, ts);
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("malformed command %s", line), e);
+            }
+            command.writeTo(output);
+            lastTimestamp = ts;
+        }
+
+        /**
+         * Encodes a command of the text grammar into the scratch buffer.
+         * @param line command
+         * @param ts timestamp
+         */
+        private void encode(String line, long ts) {
+            String[] tokens = line.split("[(,) ]+");
+            String option = tokens[0];
+            if (option.equals("begin")) {
+                writeCommand(Opcode.BEGIN, ts);
+                writeVarint(Integer.parseInt(tokens[1].substring(1)));
+                writeVarint(zigzag(tokens.length > 2 ? Integer.parseInt(tokens[2]) : 0));
+            } else if (option.equals("beginRO")) {
+                writeCommand(Opcode.BEGIN_RO, ts);
+                writeVarint(Integer.parseInt(tokens[1].substring(1)));
+            } else if (option.equals("R")) {
+                writeCommand(Opcode.READ, ts);
+                writeVarint(Integer.parseInt(tokens[1].substring(1)));
+                writeVarint(Integer.parseInt(tokens[2].substring(1)));
+            } else if (option.equals("RU")) {
+                writeCommand(Opcode.READ_FOR_UPDATE, ts);
+                writeVarint(Integer.parseInt(tokens[1].substring(1)));
+                writeVarint(Integer.parseInt(tokens[2].substring(1)));
+            } else if (option.equals("W") && tokens[3].startsWith("\"")) {
+                byte[] blob = line.substring(line.indexOf('"') + 1, line.lastIndexOf('"')).getBytes(StandardCharsets.UTF_8);
+                writeCommand(Opcode.WRITE_BLOB, ts);
+                writeVarint(Integer.parseInt(tokens[1].substring(1)));
+                writeVarint(Integer.parseInt(tokens[2].substring(1)));
+                writeVarint(blob.length);
+                command.write(blob, 0, blob.length);
+            } else if (option.equals("W")) {
+                writeCommand(Opcode.WRITE, ts);
+                writeVarint(Integer.parseInt(tokens[1].substring(1)));
+                writeVarint(Integer.parseInt(tokens[2].substring(1)));
+                writeVarint(zigzag(Integer.parseInt(tokens[3])));
+            } else if (option.equals("fail")) {
+                writeCommand(Opcode.FAIL, ts);
+                writeVarint(Integer.parseInt(tokens[1]));
+            } else if (option.equals("recover")) {
+                writeCommand(Opcode.RECOVER, ts);
+                writeVarint(Integer.parseInt(tokens[1]));
+            } else if (option.equals("end")) {
+                writeCommand(Opcode.END, ts);
+                writeVarint(Integer.parseInt(tokens[1].substring(1)));
+            } else {
+                writeCommand(Opcode.DUMP, ts);
+            }
+        }
+
+        /**
+         * Writes the opcode of a command, and its timestamp if timestamps are embedded.
+         * @param opcode opcode
+         * @param ts timestamp
+         */
+        private void writeCommand(Opcode opcode, long ts) {
+            command.write(opcode.ordinal());
+            if (hasTimestamps) {
+                writeVarlong(ts - lastTimestamp);
+            }
+        }
+
+        /**
+         * Writes an unsigned varint, seven bits per byte with the high bit set on all bytes but
+         * the last one.
+         * @param v value
+         */
+        private void writeVarint(int v) {
+            while ((v & ~0x7F) != 0) {
+                command.write((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            command.write(v);
+        }
+
+        /**
+         * Writes an unsigned varlong, which is a varint of 64 bits.
+         * @param v value
+         */
+        private void writeVarlong(long v) {
+            while ((v & ~0x7FL) != 0) {
+                command.write((int) (v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            command.write((int) v);
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.close();
+        }
+    }
+
+    /**
+     * This class reads a file through a memory mapped window, which is moved along the file
+     * when a command may cross its end.
+     */
+    private static class MappedReader {
+        private FileChannel channel;
+        private long size;
+        private long base;
+        private MappedByteBuffer window;
+
+        private MappedReader(FileChannel c) throws IOException {
+            channel = c;
+            size = channel.size();
+            base = 0;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(WINDOW_SIZE, size));
+        }
+
+        /**
+         * Returns whether bytes are left.
+         * @return boolean
+         */
+        private boolean hasRemaining() {
+            return base + window.position() < size;
+        }
+
+        /**
+         * Moves the window so that it holds the next n bytes, or the rest of the file.
+         * @param n number of bytes
+         * @throws IOException if fails to map
+         */
+        private void ensure(int n) throws IOException {
+            if (window.remaining() < n && base + window.limit() < size) {
+                base += window.position();
+                window = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(Math.max(WINDOW_SIZE, n), size - base));
+            }
+        }
+
+        /**
+         * Reads an unsigned varint.
+         * @return value
+         */
+        private int getVarint() {
+            int b = window.get();
+            int v = b & 0x7F;
+            for (int shift = 7; b < 0; shift += 7) {
+                b = window.get();
+                v |= (b & 0x7F) << shift;
+            }
+            return v;
+        }
+
+        /**
+         * Reads an unsigned varlong.
+         * @return value
+         */
+        private long getVarlong() {
+            int b = window.get();
+            long v = b & 0x7F;
+            for (int shift = 7; b < 0; shift += 7) {
+                b = window.get();
+                v |= (long) (b & 0x7F) << shift;
+            }
+            return v;
+        }
+    }
+
+    /**
+     * Encodes a signed value so that values near zero take few bytes.
+     * @param v value
+     * @return encoded value
+     */
+    private static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    /**
+     * Decodes a zigzag encoded value.
+     * @param v encoded value
+     * @return value
+     */
+    private static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Returns whether a file is a binary trace.
+     * @param path path
+     * @return boolean
+     * @throws IOException if fails to read
+     */
+    public static boolean isBinaryTrace(String path) throws IOException {
+        try (InputStream input = Files.newInputStream(Path.of(path))) {
+            byte[] magic = input.readNBytes(4);
+            return magic.length == 4 && ByteBuffer.wrap(magic).getInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Executes every command of a binary trace straight from the memory mapped file. Time
+     * advances by one tick after each command as in a text replay, and by one more for every
+     * timestamp skipped between embedded timestamps, as while a server is idle. Blobs are passed
+     * as views of the file.
+     * @param transactionManager transactionManager
+     * @param path path
+     * @return number of commands
+     * @throws IOException if fails to read, or the file is not a binary trace
+     */
+    public static int replay(TransactionManager transactionManager, String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(String.format("%s is not a binary trace", path));
+            }
+            MappedReader reader = new MappedReader(channel);
+            ByteBuffer window = reader.window;
+            if (window.getInt() != MAGIC || window.get() != VERSION) {
+                throw new IOException(String.format("%s is not a binary trace of version %d", path, VERSION));
+            }
+            boolean hasTimestamps = (window.get() & HAS_TIMESTAMPS) != 0;
+            TimestampOracle.Clock clock = transactionManager.getTimestampOracle().newClock();
+            long timeStamp = 0;
+            int commandCount = 0;
+            while (reader.hasRemaining()) {
+                reader.ensure(MAX_COMMAND_HEADER_SIZE);
+                window = reader.window;
+                Opcode opcode = OPCODES[window.get()];
+                long nextTimeStamp = hasTimestamps ? timeStamp + reader.getVarlong() : clock.next();
+                for (long t = timeStamp + 1; hasTimestamps && t < nextTimeStamp; t++) {
+                    transactionManager.tickAll();
+                }
+                timeStamp = nextTimeStamp;
+                int tid;
+                int vid;
+                switch (opcode) {
+                    case BEGIN:
+                        tid = reader.getVarint();
+                        transactionManager.getOwner(tid).begin(tid, timeStamp, unzigzag(reader.getVarint()));
+                        break;
+                    case BEGIN_RO:
+                        tid = reader.getVarint();
+                        transactionManager.getOwner(tid).beginRO(tid, timeStamp);
+                        break;
+                    case READ:
+                        tid = reader.getVarint();
+                        transactionManager.getOwner(tid).read(tid, reader.getVarint(), timeStamp);
+                        break;
+                    case READ_FOR_UPDATE:
+                        tid = reader.getVarint();
+                        transactionManager.getOwner(tid).readForUpdate(tid, reader.getVarint(), timeStamp);
+                        break;
+                    case WRITE:
+                        tid = reader.getVarint();
+                        vid = reader.getVarint();
+                        transactionManager.getOwner(tid).write(tid, vid, unzigzag(reader.getVarint()), timeStamp);
+                        break;
+                    case WRITE_BLOB:
+                        tid = reader.getVarint();
+                        vid = reader.getVarint();
+                        int length = reader.getVarint();
+                        reader.ensure(length);
+                        window = reader.window;
+                        ByteBuffer blob = window.slice(window.position(), length);
+                        window.position(window.position() + length);
+                        transactionManager.getOwner(tid).writeBlob(tid, vid, blob, timeStamp);
+                        break;
+                    case FAIL:
+                        transactionManager.fail(reader.getVarint());
+                        break;
+                    case RECOVER:
+                        transactionManager.recover(reader.getVarint());
+                        break;
+                    case END:
+                        tid = reader.getVarint();
+                        transactionManager.getOwner(tid).end(tid, timeStamp);
+                        break;
+                    default:
+                        transactionManager.dump();
+                }
+                transactionManager.tickAll();
+                commandCount++;
+            }
+            return commandCount;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * This class serves the command grammar to client sessions over a loopback TCP socket or a
+ * Unix-domain socket. A single thread multiplexes all sessions with a selector, so commands of
+ * all sessions are executed one at a time in the order they arrive, and a session may pipeline
+ * many commands without waiting for their events. Events of a transaction are streamed to the
+ * session that began it, also when the transaction is unblocked by a command of another session,
+ * and other events go to the session sending the command. A command is timestamped by a clock
+ * of the timestamp oracle that ticks once per command, and once per tick interval while no
+ * command arrives, so that groups of commit decisions are still forced when clients are idle. The
+ * command shutdown forces pending commit decisions, sends the remaining events and stops the
+ * server. A malformed command gets an error line back on its session only, and the server keeps
+ * serving.
+ * @version 12/07/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class CommandServer {
+    private static final long TICK_MILLIS = 10;
+
+    private List<TransactionManager> transactionManagers;
+    private BinaryTrace.Recorder recorder;
+    private List<Session> sessions;
+    private ByteBuffer readBuffer;
+    private TimestampOracle.Clock clock;
+    private boolean isShutdown;
+
+    public CommandServer(List<TransactionManager> tms) {
+        transactionManagers = tms;
+        recorder = null;
+        sessions = new ArrayList<>();
+        readBuffer = ByteBuffer.allocate(4096);
+        clock = tms.get(0).getTimestampOracle().newClock();
+        isShutdown = false;
+    }
+
+    /**
+     * This class represents a client connection with its unfinished command and unsent events.
+     */
+    private static class Session {
+        private SocketChannel channel;
+        private ByteArrayOutputStream partialLine;
+        private ByteArrayOutputStream events;
+        private PrintStream output;
+        private ByteBuffer unsentEvents;
+
+        private Session(SocketChannel c) {
+            channel = c;
+            partialLine = new ByteArrayOutputStream();
+            events = new ByteArrayOutputStream();
+            output = new PrintStream(events, false, StandardCharsets.UTF_8);
+            unsentEvents = ByteBuffer.allocate(0);
+        }
+    }
+
+    /**
+     * Sets the recorder of commands executed, with their timestamps.
+     * @param r recorder, or null
+     */
+    public void setRecorder(BinaryTrace.Recorder r) {
+        recorder = r;
+    }
+
+    /**
+     * Serves sessions until a session sends shutdown.
+     * @param address port on the loopback interface, or unix:path for a Unix-domain socket
+     * @throws IOException if fails to listen or to serve
+     */
+    public void serve(String address) throws IOException {
+        Path unixPath = address.startsWith("unix:") ? Path.of(address.substring("unix:".length())) : null;
+        ServerSocketChannel serverChannel;
+        if (unixPath != null) {
+            Files.deleteIfExists(unixPath);
+            serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            serverChannel.bind(UnixDomainSocketAddress.of(unixPath));
+        } else {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address)));
+        }
+        System.out.println(String.format("server - listening on %s", serverChannel.getLocalAddress()));
+        try (Selector selector = Selector.open()) {
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            while (!isShutdown) {
+                if (selector.select(TICK_MILLIS) == 0) {
+                    tick();
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept(serverChannel, selector);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(key);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(key);
+                    }
+                }
+                for (Session session : new ArrayList<>(sessions)) {
+                    queueEvents(session, selector);
+                }
+            }
+            for (TransactionManager transactionManager : transactionManagers) {
+                transactionManager.completeCommits();
+            }
+            for (Session session : new ArrayList<>(sessions)) {
+                queueEvents(session, selector);
+            }
+            for (SelectionKey key : selector.keys()) {
+                key.cancel();
+            }
+            selector.selectNow();
+            for (Session session : sessions) {
+                session.channel.configureBlocking(true);
+                while (session.unsentEvents.hasRemaining()) {
+                    session.channel.write(session.unsentEvents);
+                }
+                session.channel.close();
+            }
+        } finally {
+            setOutput(System.out);
+            serverChannel.close();
+            if (unixPath != null) {
+                Files.deleteIfExists(unixPath);
+            }
+        }
+    }
+
+    /**
+     * Advances the clock while no command arrives. Events go to the console of the server.
+     */
+    private void tick() {
+        clock.next();
+        setOutput(System.out);
+        transactionManagers.get(0).tickAll();
+    }
+
+    /**
+     * Sets the output of all transaction managers.
+     * @param output output
+     */
+    private void setOutput(PrintStream output) {
+        for (TransactionManager transactionManager : transactionManagers) {
+            transactionManager.setOutput(output);
+        }
+    }
+
+    /**
+     * Accepts a new session.
+     * @param serverChannel server channel
+     * @param selector selector
+     * @throws IOException if fails to accept
+     */
+    private void accept(ServerSocketChannel serverChannel, Selector selector) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel != null) {
+            channel.configureBlocking(false);
+            Session session = new Session(channel);
+            sessions.add(session);
+            channel.register(selector, SelectionKey.OP_READ, session);
+        }
+    }
+
+    /**
+     * Reads from a session and executes every complete command in order.
+     * @param key selection key of the session
+     * @throws IOException if fails to read
+     */
+    private void read(SelectionKey key) throws IOException {
+        Session session = (Session) key.attachment();
+        ByteBuffer buffer = readBuffer;
+        buffer.clear();
+        int readCount;
+        try {
+            readCount = session.channel.read(buffer);
+        } catch (IOException e) {
+            readCount = -1;
+        }
+        if (readCount < 0) {
+            close(key);
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                String line = session.partialLine.toString(StandardCharsets.UTF_8).trim();
+                session.partialLine.reset();
+                if (!line.isEmpty() && !isShutdown) {
+                    try {
+                        execute(session, line);
+                    } catch (RuntimeException e) {
+                        session.output.println(String.format("error - invalid command %s: %s", line, e));
+                    }
+                }
+            } else {
+                session.partialLine.write(b);
+            }
+        }
+    }
+
+    /**
+     * Executes a command of a session, and records it only once it is executed, so that a
+     * command the engine rejects is not recorded.
+     * @param session session
+     * @param line command
+     * @throws IOException if fails to record
+     */
+    private void execute(Session session, String line) throws IOException {
+        if (line.equals("shutdown")) {
+            isShutdown = true;
+            return;
+        }
+        long timeStamp = clock.next();
+        String[] tokens = line.split("[(,) ]+");
+        if ((tokens[0].equals("begin") || tokens[0].equals("beginRO")) && tokens.length > 1) {
+            int tid = Integer.parseInt(tokens[1].substring(1));
+            transactionManagers.get(0).getOwner(tid).setOutput(tid, session.output);
+        }
+        setOutput(session.output);
+        Database.execute(transactionManagers.get(0), line, timeStamp);
+        if (recorder != null) {
+            recorder.record(line, timeStamp);
+        }
+    }
+
+    /**
+     * Moves the events given to a session since last time into its unsent events, and sends
+     * as much as the channel takes without blocking.
+     * @param session session
+     * @param selector selector
+     * @throws IOException if fails to send
+     */
+    private void queueEvents(Session session, Selector selector) throws IOException {
+        session.output.flush();
+        if (session.events.size() > 0) {
+            ByteBuffer unsentEvents = ByteBuffer.allocate(session.unsentEvents.remaining() + session.events.size());
+            unsentEvents.put(session.unsentEvents).put(session.events.toByteArray()).flip();
+            session.unsentEvents = unsentEvents;
+            session.events.reset();
+        }
+        SelectionKey key = session.channel.keyFor(selector);
+        if (session.unsentEvents.hasRemaining() && key != null && key.isValid()) {
+            write(key);
+        }
+    }
+
+    /**
+     * Sends unsent events of a session without blocking, and waits for the channel to be
+     * writable if some are left.
+     * @param key selection key of the session
+     * @throws IOException if fails to send
+     */
+    private void write(SelectionKey key) throws IOException {
+        Session session = (Session) key.attachment();
+        try {
+            session.channel.write(session.unsentEvents);
+        } catch (IOException e) {
+            close(key);
+            return;
+        }
+        key.interestOps(session.unsentEvents.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Closes a session. Its transactions keep running, and their events are dropped since its
+     * output is closed.
+     * @param key selection key of the session
+     * @throws IOException if fails to close
+     */
+    private void close(SelectionKey key) throws IOException {
+        Session session = (Session) key.attachment();
+        session.output.close();
+        key.cancel();
+        session.channel.close();
+        sessions.remove(session);
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * This class is the log of commit decisions made by the transaction manager in two-phase commit.
+ * Aborts are presumed, so only commit records are written. Records are forced in groups: a group
+ * is forced once it is full or its oldest record has waited for as many ticks as the group size.
+ * Without a path, records are kept in memory only.
+ * @version 12/06/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class CoordinatorLog {
+    private FileChannel channel;
+    private int groupSize;
+    private List<Integer> pendingTransactionIds;
+    private StringBuilder pendingRecords;
+    private int pendingTicks;
+    private long recordCount;
+    private long forceCount;
+
+    public CoordinatorLog(String path, int size) {
+        try {
+            if (path != null) {
+                channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        groupSize = Math.max(1, size);
+        pendingTransactionIds = new ArrayList<>();
+        pendingRecords = new StringBuilder();
+        pendingTicks = 0;
+        recordCount = 0;
+        forceCount = 0;
+    }
+
+    /**
+     * Appends a commit record that is not forced yet.
+     * @param tid transactionId
+     * @param ts timestamp
+     * @param siteIds siteIds of participants
+     */
+    public void appendCommit(int tid, long ts, Collection<Integer> siteIds) {
+        pendingTransactionIds.add(tid);
+        pendingRecords.append(String.format("commit T%d %d %s%n", tid, ts, siteIds));
+        recordCount++;
+    }
+
+    /**
+     * Returns whether the pending group should be forced.
+     * @return boolean
+     */
+    public boolean isGroupReady() {
+        return !pendingTransactionIds.isEmpty()
+                && (pendingTransactionIds.size() >= groupSize || pendingTicks >= groupSize);
+    }
+
+    /**
+     * Advances time by one tick for the pending group.
+     */
+    public void tick() {
+        if (!pendingTransactionIds.isEmpty()) {
+            pendingTicks++;
+        }
+    }
+
+    /**
+     * Forces the pending group with a single write.
+     * @return transactionIds whose commit records are forced
+     */
+    public List<Integer> force() {
+        List<Integer> transactionIds = pendingTransactionIds;
+        if (!transactionIds.isEmpty()) {
+            try {
+                if (channel != null) {
+                    ByteBuffer buffer = ByteBuffer.wrap(pendingRecords.toString().getBytes(StandardCharsets.UTF_8));
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            forceCount++;
+        }
+        pendingTransactionIds = new ArrayList<>();
+        pendingRecords.setLength(0);
+        pendingTicks = 0;
+        return transactionIds;
+    }
+
+    /**
+     * Gets number of commit records.
+     * @return recordCount
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Gets number of forced writes.
+     * @return forceCount
+     */
+    public long getForceCount() {
+        return forceCount;
+    }
+
+    /**
+     * Forces pending records and closes the log.
+     */
+    public void close() {
+        force();
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
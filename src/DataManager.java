@@ -1,5 +1,10 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 
@@ -13,18 +18,53 @@ public class DataManager {
 
     private int id;
     private boolean isActive;
-    private Map<Integer, Variable> variables;       // <variableId, variable>
-    private Map<Integer, LockManager> lockManagers; // <variableId, lockManager>
+    private boolean isQuorumReplicated;
+    private int readCount;
+    private PlacementPolicy placementPolicy;
+    private List<Integer> variableIds;
+    private VariableStore variables;
+    private SlabAllocator blobs;
+    private VersionSegments versionSegments;        // null if committed values are kept in memory only
+    private LockManager[] lockManagers;             // <variableId, lockManager>, null if not hosted
+    private BitSet preparedTransactionIds;
+    private BitSet lockLossTransactionIds;          // transactions whose locks were released by a failure
+    private BitSet dirtyVariableIds;                // variables committed since the last dump
+    private Map<Integer, DataManager> peers;        // <siteId, dataManager>, sites to catch up from
 
     public DataManager(int sid) {
         id = sid;
         isActive = true;
-        variables = new HashMap<>();
-        lockManagers = new HashMap<>();
+        isQuorumReplicated = false;
+        readCount = 0;
+        preparedTransactionIds = new BitSet();
+        lockLossTransactionIds = new BitSet();
+        dirtyVariableIds = new BitSet(VARIABLE_COUNT + 1);
+        placementPolicy = new PlacementPolicy(TransactionManager.SITE_COUNT, TransactionManager.SITE_COUNT);
+        placeVariables();
+        variables = new HeapVariableStore(variableIds);
+        blobs = new SlabAllocator();
+        versionSegments = null;
+        peers = Map.of();
+    }
+
+    /**
+     * Sets the sites this site catches up from.
+     * @param p map of siteId to dataManager
+     */
+    public void setPeers(Map<Integer, DataManager> p) {
+        peers = p;
+    }
+
+    /**
+     * Sets up the variables this site hosts by the placement policy.
+     */
+    private void placeVariables() {
+        variableIds = new ArrayList<>();
+        lockManagers = new LockManager[VARIABLE_COUNT + 1];
         for (int i = 1; i <= VARIABLE_COUNT; i++) {
-            if (i % 2 == 0 || i % 10 + 1 == id) {
-                variables.put(i, new Variable(i));
-                lockManagers.put(i, new LockManager(i));
+            if (placementPolicy.isHosted(i, id)) {
+                variableIds.add(i);
+                lockManagers[i] = new LockManager(i);
             }
         }
     }
@@ -45,13 +85,138 @@ public class DataManager {
         return isActive;
     }
 
+    /**
+     * Sets whether variables are replicated by quorums. Replicas are versioned under quorum
+     * replication, so all of them are readable right after recovery.
+     * @param q isQuorumReplicated
+     */
+    public void setQuorumReplicated(boolean q) {
+        isQuorumReplicated = q;
+    }
+
+    /**
+     * Places variables on sites by a placement policy, keeping the kind of storage. This is only
+     * allowed before any variable is accessed and before versions are spilled.
+     * @param p placementPolicy
+     */
+    public void setPlacementPolicy(PlacementPolicy p) {
+        if (p.getReplicationFactor() != placementPolicy.getReplicationFactor()) {
+            placementPolicy = p;
+            placeVariables();
+            variables = variables instanceof OffHeapVariableStore
+                    ? new OffHeapVariableStore(variableIds, VARIABLE_COUNT) : new HeapVariableStore(variableIds);
+        }
+    }
+
+    /**
+     * Stores variables off the heap. This is only allowed before any variable is accessed.
+     */
+    public void setOffHeapStorage() {
+        if (!(variables instanceof OffHeapVariableStore)) {
+            variables = new OffHeapVariableStore(variableIds, VARIABLE_COUNT);
+        }
+    }
+
+    /**
+     * Keeps the newest n committed values of each variable in memory, and spills older ones to
+     * segment files of this site in a directory. Only variables stored on the heap are spilled,
+     * since the off-heap store keeps its version log off the heap already.
+     * @param dir directory of segment files
+     * @param n maxInMemoryVersionCount
+     */
+    public void setVersionSpill(Path dir, int n) {
+        if (variables instanceof HeapVariableStore && versionSegments == null) {
+            versionSegments = new VersionSegments(dir, id);
+            ((HeapVariableStore) variables).setVersionSpill(versionSegments, n);
+        }
+    }
+
+    /**
+     * Gets segments of committed values spilled by this site.
+     * @return versionSegments, or null if committed values are kept in memory only
+     */
+    public VersionSegments getVersionSegments() {
+        return versionSegments;
+    }
+
+    /**
+     * Releases resources of this site, deleting the segment files of spilled values.
+     */
+    public void close() {
+        if (versionSegments != null) {
+            versionSegments.close();
+        }
+    }
+
+    /**
+     * Returns whether a variableId is one of the variables hosted by this site.
+     * @param vid variableId
+     * @return boolean
+     */
+    private boolean isHosted(int vid) {
+        return vid >= 0 && vid < lockManagers.length && lockManagers[vid] != null;
+    }
+
     /**
      * Returns whether the site is holding a variable.
      * @param vid variableId
      * @return boolean
      */
     public boolean containsVariable(int vid) {
-        return variables.containsKey(vid);
+        return variables.contains(vid);
+    }
+
+    /**
+     * Returns whether a variable on this site is readable.
+     * @param vid variableId
+     * @return boolean
+     */
+    public boolean isReadable(int vid) {
+        return variables.contains(vid) && variables.isReadable(vid);
+    }
+
+    /**
+     * Writes variableIds of variables that are not readable since recovery into a buffer.
+     * @param buffer buffer of variableIds, with room for all variables of this site
+     * @return number of unreadable variables
+     */
+    public int getUnreadableVariables(int[] buffer) {
+        int count = 0;
+        for (int vid : variableIds) {
+            if (!variables.isReadable(vid)) {
+                buffer[count++] = vid;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copies committed values of a variable from an up-to-date site and sets it to be readable.
+     * A variable locked on this site is skipped, since it will be readable when the writer
+     * commits, and so is a source with a pending writer, whose commit would make the copy stale.
+     * Blobs are copied into the slab allocator of this site, and successive versions sharing a
+     * blob on the source site share the copy.
+     * @param vid variableId
+     * @param source up-to-date site
+     * @return whether the variable is caught up
+     */
+    public boolean catchUp(int vid, DataManager source) {
+        if (!isActive || !source.isReadable(vid) || lockManagers[vid].getLockCount() > 0
+                || source.isWriteLocked(vid)) {
+            return false;
+        }
+        int[] lastCopy = {-1, -1};      // handle on source site, handle of its copy
+        variables.catchUp(vid, source.variables, handle -> {
+            if (handle == lastCopy[0]) {
+                blobs.retain(lastCopy[1]);
+            } else {
+                lastCopy[0] = handle;
+                lastCopy[1] = blobs.copyFrom(source.blobs, handle);
+            }
+            return lastCopy[1];
+        });
+        dirtyVariableIds.set(vid);
+        return true;
     }
 
     /**
@@ -61,14 +226,14 @@ public class DataManager {
      * @return boolean
      */
     public boolean canRead(Transaction.TransactionType t, Operation o) {
-        if (!isActive || !variables.containsKey(o.getVariableId())) {
+        if (!isActive || !variables.contains(o.getVariableId())) {
             return false;
         }
-        if (!variables.get(o.getVariableId()).isReadable()) {
+        if (!variables.isReadable(o.getVariableId())) {
             return false;
         }
         if (Transaction.TransactionType.READ_WRITE.equals(t)) {
-            return lockManagers.get(o.getVariableId()).canAcquireLock(o.getType(), o.getTransactionId());
+            return lockManagers[o.getVariableId()].canAcquireLock(o.getType(), o.getTransactionId());
         }
         return true;
     }
@@ -80,13 +245,14 @@ public class DataManager {
      * @param o operation
      * @return value
      */
-    public int read(Transaction.TransactionType t, int ts, Operation o) {
-        if (Operation.OperationType.READ.equals(o.getType()) && canRead(t, o)) {
+    public int read(Transaction.TransactionType t, long ts, Operation o) {
+        if (o.isRead() && canRead(t, o)) {
+            readCount++;
             if (Transaction.TransactionType.READ_ONLY.equals(t)) {
-                return readByReadOnlyTransaction(ts, o, variables.get(o.getVariableId()));
+                return readByReadOnlyTransaction(ts, o);
             } else {
-                lockManagers.get(o.getVariableId()).lock(o.getType(), o.getTransactionId(), o.getVariableId());
-                return readByReadWriteTransaction(o, variables.get(o.getVariableId()));
+                lockManagers[o.getVariableId()].lock(o.getType(), o.getTransactionId(), o.getVariableId());
+                return readByReadWriteTransaction(o);
             }
         }
         return 0;
@@ -96,28 +262,46 @@ public class DataManager {
      * Reads a value for a read-only transaction.
      * @param ts timestamp
      * @param o operation
-     * @param v variable
      * @return value
      */
-    private int readByReadOnlyTransaction(int ts, Operation o, Variable v) {
-        o.setValue(v.getLastCommittedValueBefore(ts));
-        return v.getLastCommittedValueBefore(ts);
+    private int readByReadOnlyTransaction(long ts, Operation o) {
+        int value = variables.getLastCommittedValueBefore(o.getVariableId(), ts);
+        o.setValue(value);
+        return value;
     }
 
     /**
      * Reads a value for a read-write transaction.
      * @param o operation
-     * @param v variable
      * @return value
      */
-    private int readByReadWriteTransaction(Operation o, Variable v) {
-        if (v.getTransactionIdToCommit() == o.getTransactionId()) {
-            o.setValue(v.getValueToCommit());
-            return v.getValueToCommit();
+    private int readByReadWriteTransaction(Operation o) {
+        int vid = o.getVariableId();
+        if (variables.getTransactionIdToCommit(vid) == o.getTransactionId()) {
+            o.setValue(variables.getValueToCommit(vid));
+            return variables.getValueToCommit(vid);
         } else {
-            o.setValue(v.getLastCommittedValue());
-            return v.getLastCommittedValue();
+            o.setValue(variables.getLastCommittedValue(vid));
+            return variables.getLastCommittedValue(vid);
+        }
+    }
+
+    /**
+     * Returns whether the value a transaction reads from a variable is a blob handle.
+     * @param t transactionType
+     * @param ts timestamp
+     * @param o operation
+     * @return boolean
+     */
+    private boolean isBlobRead(Transaction.TransactionType t, long ts, Operation o) {
+        int vid = o.getVariableId();
+        if (Transaction.TransactionType.READ_ONLY.equals(t)) {
+            return variables.isCommittedBlobBefore(vid, ts);
         }
+        if (variables.getTransactionIdToCommit(vid) == o.getTransactionId()) {
+            return variables.isBlobToCommit(vid);
+        }
+        return variables.isLastCommittedBlob(vid);
     }
 
     /**
@@ -128,10 +312,21 @@ public class DataManager {
      */
     public boolean canWrite(Transaction.TransactionType t, Operation o) {
         if (!isActive || Transaction.TransactionType.READ_ONLY.equals(t) ||
-                !variables.containsKey(o.getVariableId())) {
+                !variables.contains(o.getVariableId())) {
             return false;
         }
-        return lockManagers.get(o.getVariableId()).canAcquireLock(o.getType(), o.getTransactionId());
+        return lockManagers[o.getVariableId()].canAcquireLock(o.getType(), o.getTransactionId());
+    }
+
+    /**
+     * Takes an update lock on a copy of a variable without reading it, so that a read for update
+     * holds all available copies a later write needs.
+     * @param o operation
+     */
+    public void lockForUpdate(Operation o) {
+        if (Operation.OperationType.READ_FOR_UPDATE.equals(o.getType())) {
+            lockManagers[o.getVariableId()].lock(o.getType(), o.getTransactionId(), o.getVariableId());
+        }
     }
 
     /**
@@ -140,24 +335,318 @@ public class DataManager {
      * @param o operation
      */
     public void write(Transaction.TransactionType t, Operation o) {
+        write(t, o, 0);
+    }
+
+    /**
+     * Writes to a variable with the version number to commit. A blob value is copied into the
+     * slab allocator, unless it equals the blob of the last commit, which is then shared.
+     * @param t transactionType
+     * @param o operation
+     * @param ver versionToCommit
+     */
+    public void write(Transaction.TransactionType t, Operation o, int ver) {
         if (Operation.OperationType.WRITE.equals(o.getType()) && canWrite(t, o)) {
-            lockManagers.get(o.getVariableId()).lock(o.getType(), o.getTransactionId(), o.getVariableId());
-            Variable variable = variables.get(o.getVariableId());
-            variable.setValueToCommit(o.getValue());
-            variable.setTransactionIdToCommit(o.getTransactionId());
+            int vid = o.getVariableId();
+            if (lockManagers[vid].isWriteLockedBy(o.getTransactionId())) {
+                releaseValueToCommit(vid);
+            }
+            lockManagers[vid].lock(o.getType(), o.getTransactionId(), vid);
+            ByteBuffer blob = o.getBlob();
+            if (blob == null) {
+                variables.setValueToCommit(vid, o.getValue(), false, o.getTransactionId(), ver);
+            } else if (variables.isLastCommittedBlob(vid) &&
+                    blobs.contentEquals(variables.getLastCommittedValue(vid), blob)) {
+                blobs.retain(variables.getLastCommittedValue(vid));
+                variables.setValueToCommit(vid, variables.getLastCommittedValue(vid), true, o.getTransactionId(), ver);
+            } else {
+                variables.setValueToCommit(vid, blobs.allocate(blob), true, o.getTransactionId(), ver);
+            }
+        }
+    }
+
+    /**
+     * Releases the blob of the value to commit of a variable, if there is one, when it will not
+     * be committed.
+     * @param vid variableId
+     */
+    private void releaseValueToCommit(int vid) {
+        if (variables.isBlobToCommit(vid)) {
+            blobs.release(variables.getValueToCommit(vid));
+        }
+    }
+
+    /**
+     * Gets version number of the last commit on a variable.
+     * @param vid variableId
+     * @return version
+     */
+    public int getVersion(int vid) {
+        return variables.getVersion(vid);
+    }
+
+    /**
+     * Gets timestamp of the last commit on a variable before a timestamp.
+     * @param vid variableId
+     * @param ts timestamp
+     * @return commitTimestamp
+     */
+    public long getLastCommitTimestampBefore(int vid, long ts) {
+        return variables.getLastCommitTimestampBefore(vid, ts);
+    }
+
+    /**
+     * Returns whether a transaction is holding a write lock on a variable.
+     * @param vid variableId
+     * @param tid transactionId
+     * @return boolean
+     */
+    public boolean isWriteLockedBy(int vid, int tid) {
+        return isHosted(vid) && lockManagers[vid].isWriteLockedBy(tid);
+    }
+
+    /**
+     * Returns whether any transaction is holding a write lock on a variable, which is also the
+     * case for a prepared write kept through a failure.
+     * @param vid variableId
+     * @return boolean
+     */
+    public boolean isWriteLocked(int vid) {
+        return isHosted(vid) && lockManagers[vid].isWriteLocked();
+    }
+
+    /**
+     * Returns whether a transaction is holding any write lock on this site.
+     * @param tid transactionId
+     * @return boolean
+     */
+    public boolean hasWriteLock(int tid) {
+        for (LockManager lockManager : lockManagers) {
+            if (lockManager == null) {
+                continue;
+            }
+            if (lockManager.isWriteLockedBy(tid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Handles a message from the transaction manager and fills in its reply.
+     * @param m message
+     */
+    public void handle(SiteMessage m) {
+        Operation o = m.getOperation();
+        switch (m.getType()) {
+            case READ:
+                m.setResult(canRead(m.getTransactionType(), o));
+                if (m.getResult()) {
+                    m.setValue(read(m.getTransactionType(), m.getTimestamp(), o));
+                    if (isBlobRead(m.getTransactionType(), m.getTimestamp(), o)) {
+                        m.setBlob(blobs.view(m.getValue()));
+                    }
+                }
+                break;
+            case CAN_READ:
+                m.setResult(canRead(m.getTransactionType(), o));
+                setReplicaState(m);
+                break;
+            case CAN_WRITE:
+                m.setResult(canWrite(m.getTransactionType(), o));
+                setReplicaState(m);
+                break;
+            case WRITE:
+            case TRY_WRITE:
+                m.setResult(canWrite(m.getTransactionType(), o));
+                if (m.getResult()) {
+                    write(m.getTransactionType(), o, m.getVersionToCommit());
+                }
+                break;
+            case LOCK_FOR_UPDATE:
+                m.setResult(canWrite(m.getTransactionType(), o));
+                if (m.getResult()) {
+                    lockForUpdate(o);
+                }
+                break;
+            case GET_LOCK_HOLDERS:
+                int[] buffer = m.getLockHolderBuffer(getLockCount(m.getVariableId()));
+                m.setLockHolderCount(getLockHolders(m.getVariableId(), buffer));
+                break;
+            case PREPARE:
+                m.setVote(prepare(m.getTransactionId()));
+                m.setResult(!SiteMessage.Vote.NO.equals(m.getVote()));
+                break;
+            case COMMIT:
+                commit(m.getTransactionId(), m.getTimestamp());
+                m.setResult(true);
+                break;
+            case ABORT:
+                abort(m.getTransactionId());
+                m.setResult(true);
+                break;
+            case GET_LOCK_COUNT:
+                m.setLockCount(getLockCount());
+                break;
+            case IS_WRITE_LOCKED:
+                m.setResult(isWriteLocked(m.getVariableId()));
+                break;
+            case GET_UNREADABLE_VARIABLES:
+                m.setVariableIdCount(getUnreadableVariables(m.getVariableIdBuffer(variableIds.size())));
+                break;
+            case CATCH_UP:
+                DataManager source = peers.get(m.getSourceSiteId());
+                synchronized (source) {
+                    m.setResult(catchUp(m.getVariableId(), source));
+                }
+                break;
+            case FAIL:
+                m.setLockHolderCount(getSiteLockHolders(m.getLockHolderBuffer(getLockCount())));
+                fail();
+                m.setResult(true);
+                break;
+            case RECOVER:
+                recover();
+                m.setResult(true);
+                break;
+            case DUMP:
+                m.setText(formatDump());
+                break;
+            case DUMP_DELTA:
+                m.setText(formatDumpDelta());
+                break;
+        }
+    }
+
+    /**
+     * Writes transactionIds of transactions holding any lock on this site into a buffer, each
+     * once. Only as many as fit are written.
+     * @param buffer buffer of transactionIds
+     * @return number of lock holders
+     */
+    private int getSiteLockHolders(int[] buffer) {
+        int count = 0;
+        int[] variableLockHolders = new int[getLockCount()];
+        for (LockManager lockManager : lockManagers) {
+            if (lockManager == null) {
+                continue;
+            }
+            int variableLockHolderCount = lockManager.getLockHolders(variableLockHolders);
+            for (int i = 0; i < variableLockHolderCount; i++) {
+                boolean isCounted = false;
+                for (int j = 0; j < count && !isCounted; j++) {
+                    isCounted = buffer[j] == variableLockHolders[i];
+                }
+                if (!isCounted && count < buffer.length) {
+                    buffer[count++] = variableLockHolders[i];
+                }
+            }
         }
+        return count;
     }
 
     /**
-     * Gets transactionIds of lock holders on a variable.
+     * Fills in the state of the replica a message asks about.
+     * @param m message
+     */
+    private void setReplicaState(SiteMessage m) {
+        int vid = m.getVariableId();
+        if (variables.contains(vid)) {
+            m.setReplicaState(getVersion(vid), getLastCommitTimestampBefore(vid, m.getTimestamp()),
+                    isWriteLockedBy(vid, m.getTransactionId()));
+        }
+    }
+
+    /**
+     * Writes transactionIds of lock holders on a variable into a buffer. Only as many as fit are
+     * written.
+     * @param vid variableId
+     * @param buffer buffer of transactionIds
+     * @return number of lock holders
+     */
+    public int getLockHolders(int vid, int[] buffer) {
+        return isHosted(vid) ? lockManagers[vid].getLockHolders(buffer) : 0;
+    }
+
+    /**
+     * Gets number of locks held on a variable.
      * @param vid variableId
-     * @return transactionIds of lock holders
+     * @return lockCount
      */
-    public List<Integer> getLockHolders(int vid) {
-        if (lockManagers.containsKey(vid)) {
-            return lockManagers.get(vid).getLockHolders();
+    public int getLockCount(int vid) {
+        return isHosted(vid) ? lockManagers[vid].getLockCount() : 0;
+    }
+
+    /**
+     * Gets number of locks held on this site.
+     * @return lockCount
+     */
+    public int getLockCount() {
+        int lockCount = 0;
+        for (LockManager lockManager : lockManagers) {
+            if (lockManager == null) {
+                continue;
+            }
+            lockCount += lockManager.getLockCount();
         }
-        return new ArrayList<>();
+        return lockCount;
+    }
+
+    /**
+     * Gets number of reads served by this site.
+     * @return readCount
+     */
+    public int getReadCount() {
+        return readCount;
+    }
+
+    /**
+     * Prepares a transaction to commit. A transaction with writes on this site is prepared and
+     * keeps its locks even if this site fails, until it commits or aborts. A transaction with
+     * only reads releases its locks, since it takes no part in the rest of the commit. The vote
+     * is no if this site is down, if a failure of this site released locks of the transaction,
+     * whose writes are then lost and whose reads may no longer be repeatable, or if a variable
+     * the transaction holds a write lock on has no value of it to commit.
+     * @param tid transactionId
+     * @return vote
+     */
+    public SiteMessage.Vote prepare(int tid) {
+        if (!isActive || lockLossTransactionIds.get(tid)) {
+            return SiteMessage.Vote.NO;
+        }
+        if (hasWriteLock(tid)) {
+            if (!hasValuesToCommit(tid)) {
+                return SiteMessage.Vote.NO;
+            }
+            preparedTransactionIds.set(tid);
+            return SiteMessage.Vote.YES;
+        }
+        for (LockManager lockManager : lockManagers) {
+            if (lockManager == null) {
+                continue;
+            }
+            lockManager.unlock(tid);
+        }
+        return SiteMessage.Vote.READ_ONLY;
+    }
+
+    /**
+     * Returns whether every variable a transaction holds a write lock on has a value of the
+     * transaction to commit.
+     * @param tid transactionId
+     * @return boolean
+     */
+    private boolean hasValuesToCommit(int tid) {
+        for (LockManager lockManager : lockManagers) {
+            if (lockManager == null) {
+                continue;
+            }
+            if (lockManager.isWriteLockedBy(tid)
+                    && variables.getTransactionIdToCommit(lockManager.getVariableId()) != tid) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -165,7 +654,15 @@ public class DataManager {
      * @param tid transactionId
      */
     public void abort(int tid) {
-        for (LockManager lockManager : lockManagers.values()) {
+        preparedTransactionIds.clear(tid);
+        lockLossTransactionIds.clear(tid);
+        for (LockManager lockManager : lockManagers) {
+            if (lockManager == null) {
+                continue;
+            }
+            if (lockManager.isWriteLockedBy(tid)) {
+                releaseValueToCommit(lockManager.getVariableId());
+            }
             lockManager.unlock(tid);
         }
     }
@@ -175,48 +672,193 @@ public class DataManager {
      * @param tid transactionId
      * @param ts timestamp
      */
-    public void commit(int tid, int ts) {
-        for (LockManager lockManager : lockManagers.values()) {
+    public void commit(int tid, long ts) {
+        FlightEvents.SiteCommitEvent event = new FlightEvents.SiteCommitEvent();
+        event.begin();
+        preparedTransactionIds.clear(tid);
+        lockLossTransactionIds.clear(tid);
+        for (LockManager lockManager : lockManagers) {
+            if (lockManager == null) {
+                continue;
+            }
             if (lockManager.isWriteLockedBy(tid)) {
-                variables.get(lockManager.getVariableId()).commit(ts);
+                variables.commit(lockManager.getVariableId(), ts);
+                dirtyVariableIds.set(lockManager.getVariableId());
             }
             lockManager.unlock(tid);
         }
+        if (event.shouldCommit()) {
+            event.siteId = id;
+            event.transactionId = tid;
+            event.commit();
+        }
     }
 
     /**
-     * Gives the committed values of all copies of all variables at this site.
+     * Formats the committed values of all copies of all variables at this site.
+     * @return dump
      */
-    public void dump() {
+    private String formatDump() {
+        dirtyVariableIds.clear();
         List<String> variableStrings = new ArrayList<>();
-        for (int i = 1; i <= VARIABLE_COUNT; i++) {
-            if (variables.containsKey(i)) {
-                variableStrings.add(variables.get(i).toString());
+        for (int vid : variableIds) {
+            variableStrings.add(formatVariable(vid));
+        }
+        return String.format("site %d - %s", id, String.join(", ", variableStrings));
+    }
+
+    /**
+     * Formats the committed values of the variables at this site committed since the last dump,
+     * full or delta.
+     * @return dump, or null if there are none
+     */
+    private String formatDumpDelta() {
+        String dump = null;
+        if (!dirtyVariableIds.isEmpty()) {
+            List<String> variableStrings = new ArrayList<>();
+            for (int vid = dirtyVariableIds.nextSetBit(0); vid >= 0; vid = dirtyVariableIds.nextSetBit(vid + 1)) {
+                variableStrings.add(formatVariable(vid));
+            }
+            dump = String.format("site %d - %s", id, String.join(", ", variableStrings));
+        }
+        dirtyVariableIds.clear();
+        return dump;
+    }
+
+    /**
+     * Formats the committed value of a variable as dump gives it.
+     * @param vid variableId
+     * @return formatted variable
+     */
+    private String formatVariable(int vid) {
+        int value = variables.getLastCommittedValue(vid);
+        ByteBuffer blob = variables.isLastCommittedBlob(vid) ? blobs.view(value) : null;
+        return String.format("x%d: %s", vid, Operation.formatValue(value, blob));
+    }
+
+    /**
+     * Writes the committed values of all copies of all variables at this site to a channel in
+     * the format of dump. Pieces are put into a chunk, which is written to the channel whenever
+     * it fills up, so the site is never formatted as a whole, and blobs are copied from their
+     * chunks of the slab allocator without being decoded. The last chunk is left to the caller
+     * to flush. Dirty variables are kept for the next delta dump.
+     * @param channel channel
+     * @param chunk chunk of output
+     * @throws IOException if fails to write
+     */
+    public void export(WritableByteChannel channel, ByteBuffer chunk) throws IOException {
+        put(channel, chunk, String.format("site %d - ", id));
+        for (int i = 0; i < variableIds.size(); i++) {
+            int vid = variableIds.get(i);
+            int value = variables.getLastCommittedValue(vid);
+            put(channel, chunk, String.format(i == 0 ? "x%d: " : ", x%d: ", vid));
+            if (variables.isLastCommittedBlob(vid)) {
+                put(channel, chunk, "\"");
+                put(channel, chunk, blobs.view(value));
+                put(channel, chunk, "\"");
+            } else {
+                put(channel, chunk, String.valueOf(value));
+            }
+        }
+        put(channel, chunk, System.lineSeparator());
+    }
+
+    /**
+     * Puts a string into a chunk of output.
+     * @param channel channel
+     * @param chunk chunk of output
+     * @param s string
+     * @throws IOException if fails to write
+     */
+    private static void put(WritableByteChannel channel, ByteBuffer chunk, String s) throws IOException {
+        put(channel, chunk, ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Puts bytes into a chunk of output, flushing the chunk each time it fills up.
+     * @param channel channel
+     * @param chunk chunk of output
+     * @param b bytes, which are not consumed
+     * @throws IOException if fails to write
+     */
+    private static void put(WritableByteChannel channel, ByteBuffer chunk, ByteBuffer b) throws IOException {
+        int position = b.position();
+        while (position < b.limit()) {
+            if (!chunk.hasRemaining()) {
+                flush(channel, chunk);
             }
+            int length = Math.min(chunk.remaining(), b.limit() - position);
+            chunk.put(chunk.position(), b, position, length);
+            chunk.position(chunk.position() + length);
+            position += length;
+        }
+    }
+
+    /**
+     * Writes a chunk of output to a channel and clears it.
+     * @param channel channel
+     * @param chunk chunk of output
+     * @throws IOException if fails to write
+     */
+    public static void flush(WritableByteChannel channel, ByteBuffer chunk) throws IOException {
+        chunk.flip();
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
         }
-        System.out.println(String.format("site %d - %s", id, String.join(", ", variableStrings)));
+        chunk.clear();
     }
 
     /**
-     * Fails this site.
+     * Fails this site. Locks of prepared transactions are kept, and the other lock holders are
+     * remembered, so that this site votes no on their commit.
      */
     public void fail() {
+        FlightEvents.SiteFailureEvent event = new FlightEvents.SiteFailureEvent();
+        event.begin();
         isActive = false;
-        for (Variable variable : variables.values()) {
-            variable.fail();
+        int[] lockHolders = new int[getLockCount()];
+        int lockHolderCount = getSiteLockHolders(lockHolders);
+        for (int i = 0; i < lockHolderCount; i++) {
+            if (!preparedTransactionIds.get(lockHolders[i])) {
+                lockLossTransactionIds.set(lockHolders[i]);
+            }
+        }
+        for (int vid : variableIds) {
+            variables.setReadable(vid, false);
+            int tid = variables.getTransactionIdToCommit(vid);
+            if (isWriteLockedBy(vid, tid) && !preparedTransactionIds.get(tid)) {
+                releaseValueToCommit(vid);
+            }
         }
-        for (LockManager lockManager : lockManagers.values()) {
-            lockManager.unlockAll();
+        for (LockManager lockManager : lockManagers) {
+            if (lockManager == null) {
+                continue;
+            }
+            lockManager.unlockAllExcept(preparedTransactionIds);
+        }
+        if (event.shouldCommit()) {
+            event.siteId = id;
+            event.commit();
         }
     }
 
     /**
-     * Recovers this site.
+     * Recovers this site. A replicated variable is not readable until it is written and committed
+     * again, unless replicas are versioned under quorum replication. Whether a variable is
+     * replicated is decided by the placement policy.
      */
     public void recover() {
+        FlightEvents.SiteRecoveryEvent event = new FlightEvents.SiteRecoveryEvent();
+        event.begin();
         isActive = true;
-        for (Variable variable : variables.values()) {
-            variable.recover();
+        for (int vid : variableIds) {
+            if (isQuorumReplicated || !placementPolicy.isReplicated(vid)) {
+                variables.setReadable(vid, true);
+            }
+        }
+        if (event.shouldCommit()) {
+            event.siteId = id;
+            event.commit();
         }
     }
 }
@@ -1,64 +1,436 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 
 /**
- * This class is the main driver of the application.
+ * This class is the main driver of the application. Options go before the input file:
+ * <ul>
+ *     <li>{@code --quorum r w}: replicates variables by read and write quorums.</li>
+ *     <li>{@code --read-policy p}: chooses sites for reads by lowest_site, round_robin,
+ *     least_loaded or sticky.</li>
+ *     <li>{@code --catch-up n}: copies n variables per command to recovered sites.</li>
+ *     <li>{@code --scheduler s}: schedules waiting operations by fifo or priority.</li>
+ *     <li>{@code --aging n}: raises the priority of a blocked transaction by one every n ticks.</li>
+ *     <li>{@code --optimistic}: buffers writes of read-write transactions and validates them
+ *     at commit instead of locking from the first access.</li>
+ *     <li>{@code --delta-dump}: makes dump give only variables committed since the previous
+ *     dump.</li>
+ *     <li>{@code --export path}: writes the committed values of all sites to a file at the end,
+ *     a chunk at a time.</li>
+ *     <li>{@code --read-stats}: gives the number of reads served by each site at the end.</li>
+ *     <li>{@code --transport t}: delivers messages to sites by loopback or socket.</li>
+ *     <li>{@code --latency-us n}: injects n microseconds into every loopback round trip.</li>
+ *     <li>{@code --unbatched}: makes every message to a site a round trip of its own.</li>
+ *     <li>{@code --coordinator-log path}: appends commit decisions to a file.</li>
+ *     <li>{@code --log-group n}: forces commit decisions to the log in groups of n.</li>
+ *     <li>{@code --transport-stats}: gives round trips and time spent on them at the end.</li>
+ *     <li>{@code --storage s}: stores variables on the heap (heap, the default) or off the heap
+ *     (offheap); any other value is rejected.</li>
+ *     <li>{@code --partitions n}: splits transactions among n transaction managers. They run on
+ *     the thread of the driver, so they split the state of transactions, not the work, and do not
+ *     raise throughput.</li>
+ *     <li>{@code --replication k}: replicates even variables on k sites chosen by rendezvous
+ *     hashing instead of all sites.</li>
+ *     <li>{@code --spill-versions n}: keeps the newest n committed values of each variable in
+ *     memory, and spills older ones to segment files in the temporary directory, or in
+ *     {@code --spill-dir dir}.</li>
+ *     <li>{@code --admission n}: admits at most n active read-write transactions, adapting the
+ *     limit to contention, and queues begins beyond it.</li>
+ *     <li>{@code --serve address}: serves commands of client sessions on a loopback port or on
+ *     unix:path instead of replaying an input file.</li>
+ *     <li>{@code --record path}: records the commands executed into a binary trace.</li>
+ *     <li>{@code --batch path}: replays every trace of a directory, or listed in a file, in
+ *     parallel, writing outputs to {@code --batch-output dir} with {@code --batch-threads n}
+ *     threads.</li>
+ *     <li>{@code --bench}: measures the engine by replaying the input file, or a generated trace
+ *     without one, {@code --bench-iterations n} times after {@code --bench-warmup n} warm-up
+ *     replays with events suppressed, and writes the results as {@code --bench-format csv} or
+ *     json to the console or to {@code --bench-output path}.</li>
+ * </ul>
  * @version 12/05/2019
  * @author Ming Xu, Xinyi Liu
  */
 public class Database {
     public static void main(String[] args) {
-        BufferedReader bufferedReader;
-        TransactionManager transactionManager = new TransactionManager();
-        try {
-            bufferedReader = new BufferedReader(new FileReader(args[0]));
-            String line = bufferedReader.readLine();
-            int timeStamp = 1;
-            while (line != null) {
-                String[] tokens = line.split("[(,) ]+");
-                String option = tokens[0];
-                if (option.equals("begin")) {
-                    String transaction = tokens[1];
-                    int transactionID = Integer.parseInt(transaction.substring(1));
-                    transactionManager.begin(transactionID, timeStamp);
-                }
-                else if (option.equals("beginRO")) {
-                    String transaction = tokens[1];
-                    int transactionID = Integer.parseInt(transaction.substring(1));
-                    transactionManager.beginRO(transactionID, timeStamp);
-                }
-                else if (option.equals("R")) {
-                    int transactionID = Integer.parseInt(tokens[1].substring(1));
-                    int variableId = Integer.parseInt(tokens[2].substring(1));
-                    transactionManager.read(transactionID, variableId, timeStamp);
-                }
-                else if (option.equals("W")) {
-                    int transactionID = Integer.parseInt(tokens[1].substring(1));
-                    int variableId = Integer.parseInt(tokens[2].substring(1));
-                    int value = Integer.parseInt(tokens[3]);
-                    transactionManager.write(transactionID, variableId, value, timeStamp);
-                }
-                else if (option.equals("fail")) {
-                    int siteID = Integer.parseInt(tokens[1]);
-                    transactionManager.fail(siteID);
-                }
-                else if (option.equals("recover")) {
-                    int siteID = Integer.parseInt(tokens[1]);
-                    transactionManager.recover(siteID);
-                }
-                else if (option.equals("end")) {
-                    String transaction = tokens[1];
-                    int transactionID = Integer.parseInt(transaction.substring(1));
-                    transactionManager.end(transactionID, timeStamp);
+        List<Consumer<TransactionManager>> settings = new ArrayList<>();
+        String inputPath = null;
+        int partitionCount = 1;
+        boolean printReadStats = false;
+        String transport = "loopback";
+        long latencyMicros = 0;
+        boolean isBatching = true;
+        boolean printTransportStats = false;
+        String coordinatorLogPath = null;
+        int logGroupSize = 1;
+        String serverAddress = null;
+        String recordPath = null;
+        String exportPath = null;
+        int versionSpillCount = 0;
+        String versionSpillDirectory = System.getProperty("java.io.tmpdir");
+        String batchPath = null;
+        String batchOutputPath = "batch-output";
+        int batchThreadCount = Runtime.getRuntime().availableProcessors();
+        boolean isBenchmark = false;
+        int benchmarkWarmupCount = 3;
+        int benchmarkIterationCount = 5;
+        Benchmark.Format benchmarkFormat = Benchmark.Format.CSV;
+        String benchmarkOutputPath = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--quorum")) {
+                int readQuorumSize = Integer.parseInt(args[i + 1]);
+                int writeQuorumSize = Integer.parseInt(args[i + 2]);
+                settings.add(tm -> tm.setQuorumReplication(readQuorumSize, writeQuorumSize));
+                i += 2;
+            }
+            else if (args[i].equals("--read-policy")) {
+                TransactionManager.ReadPolicy readPolicy = TransactionManager.ReadPolicy.valueOf(args[i + 1].toUpperCase());
+                settings.add(tm -> tm.setReadPolicy(readPolicy));
+                i += 1;
+            }
+            else if (args[i].equals("--catch-up")) {
+                int catchUpRate = Integer.parseInt(args[i + 1]);
+                settings.add(tm -> tm.setCatchUpRate(catchUpRate));
+                i += 1;
+            }
+            else if (args[i].equals("--scheduler")) {
+                TransactionManager.Scheduler scheduler = TransactionManager.Scheduler.valueOf(args[i + 1].toUpperCase());
+                settings.add(tm -> tm.setScheduler(scheduler));
+                i += 1;
+            }
+            else if (args[i].equals("--aging")) {
+                int agingInterval = Integer.parseInt(args[i + 1]);
+                settings.add(tm -> tm.setAgingInterval(agingInterval));
+                i += 1;
+            }
+            else if (args[i].equals("--optimistic")) {
+                settings.add(TransactionManager::setOptimistic);
+            }
+            else if (args[i].equals("--delta-dump")) {
+                settings.add(TransactionManager::setDeltaDump);
+            }
+            else if (args[i].equals("--export")) {
+                exportPath = args[i + 1];
+                i += 1;
+            }
+            else if (args[i].equals("--read-stats")) {
+                printReadStats = true;
+            }
+            else if (args[i].equals("--transport")) {
+                transport = args[i + 1];
+                i += 1;
+            }
+            else if (args[i].equals("--latency-us")) {
+                latencyMicros = Long.parseLong(args[i + 1]);
+                i += 1;
+            }
+            else if (args[i].equals("--unbatched")) {
+                isBatching = false;
+            }
+            else if (args[i].equals("--coordinator-log")) {
+                coordinatorLogPath = args[i + 1];
+                i += 1;
+            }
+            else if (args[i].equals("--log-group")) {
+                logGroupSize = Integer.parseInt(args[i + 1]);
+                i += 1;
+            }
+            else if (args[i].equals("--transport-stats")) {
+                printTransportStats = true;
+            }
+            else if (args[i].equals("--storage")) {
+                if (args[i + 1].equals("offheap")) {
+                    settings.add(tm -> tm.setOffHeapStorage());
                 }
-                else {
-                    transactionManager.dump();
+                else if (!args[i + 1].equals("heap")) {
+                    throw new IllegalArgumentException(String.format("unknown storage %s, expected heap or offheap",
+                            args[i + 1]));
                 }
-                timeStamp+=1;
-                line = bufferedReader.readLine();
+                i += 1;
+            }
+            else if (args[i].equals("--serve")) {
+                serverAddress = args[i + 1];
+                i += 1;
+            }
+            else if (args[i].equals("--record")) {
+                recordPath = args[i + 1];
+                i += 1;
+            }
+            else if (args[i].equals("--batch")) {
+                batchPath = args[i + 1];
+                i += 1;
+            }
+            else if (args[i].equals("--batch-output")) {
+                batchOutputPath = args[i + 1];
+                i += 1;
+            }
+            else if (args[i].equals("--batch-threads")) {
+                batchThreadCount = Integer.parseInt(args[i + 1]);
+                i += 1;
+            }
+            else if (args[i].equals("--bench")) {
+                isBenchmark = true;
+            }
+            else if (args[i].equals("--bench-warmup")) {
+                benchmarkWarmupCount = Integer.parseInt(args[i + 1]);
+                i += 1;
+            }
+            else if (args[i].equals("--bench-iterations")) {
+                benchmarkIterationCount = Integer.parseInt(args[i + 1]);
+                i += 1;
+            }
+            else if (args[i].equals("--bench-format")) {
+                benchmarkFormat = Benchmark.Format.valueOf(args[i + 1].toUpperCase());
+                i += 1;
+            }
+            else if (args[i].equals("--bench-output")) {
+                benchmarkOutputPath = args[i + 1];
+                i += 1;
+            }
+            else if (args[i].equals("--partitions")) {
+                partitionCount = Integer.parseInt(args[i + 1]);
+                i += 1;
+            }
+            else if (args[i].equals("--replication")) {
+                int replicationFactor = Integer.parseInt(args[i + 1]);
+                settings.add(tm -> tm.setReplicationFactor(replicationFactor));
+                i += 1;
+            }
+            else if (args[i].equals("--spill-versions")) {
+                versionSpillCount = Integer.parseInt(args[i + 1]);
+                i += 1;
+            }
+            else if (args[i].equals("--spill-dir")) {
+                versionSpillDirectory = args[i + 1];
+                i += 1;
+            }
+            else if (args[i].equals("--admission")) {
+                int admissionLimit = Integer.parseInt(args[i + 1]);
+                settings.add(tm -> tm.setAdmissionControl(admissionLimit));
+                i += 1;
+            }
+            else {
+                inputPath = args[i];
+            }
+        }
+        if (versionSpillCount > 0) {
+            int maxInMemoryVersionCount = versionSpillCount;
+            Path versionSpillPath = Path.of(versionSpillDirectory);
+            settings.add(tm -> tm.setVersionSpill(maxInMemoryVersionCount, versionSpillPath));
+        }
+        boolean isSocket = transport.equals("socket");
+        long latencyNanos = latencyMicros * 1000;
+        boolean isTransportBatching = isBatching;
+        settings.add(tm -> tm.setTransport(isSocket ? new SocketTransport(isTransportBatching)
+                : new LoopbackTransport(latencyNanos, isTransportBatching)));
+        if (batchPath != null) {
+            try {
+                new BatchReplay(settings, partitionCount, coordinatorLogPath, logGroupSize, printReadStats,
+                        printTransportStats).run(batchPath, batchOutputPath, batchThreadCount);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        settings.add(getCoordinatorLogSetting(coordinatorLogPath, logGroupSize, partitionCount));
+        if (isBenchmark) {
+            try {
+                new Benchmark(settings, partitionCount).run(inputPath, benchmarkWarmupCount, benchmarkIterationCount,
+                        benchmarkFormat, benchmarkOutputPath);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        List<TransactionManager> transactionManagers = createTransactionManagers(settings, partitionCount, System.out);
+        try (BinaryTrace.Recorder recorder = recordPath == null ? null : new BinaryTrace.Recorder(recordPath, true)) {
+            if (serverAddress != null) {
+                CommandServer commandServer = new CommandServer(transactionManagers);
+                commandServer.setRecorder(recorder);
+                commandServer.serve(serverAddress);
+            } else {
+                replay(transactionManagers.get(0), inputPath, recorder);
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
+        finish(transactionManagers, printReadStats, printTransportStats);
+        if (exportPath != null) {
+            try (FileChannel channel = FileChannel.open(Path.of(exportPath), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                transactionManagers.get(0).export(channel);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Gets the setting of the coordinator log. With more than one partition, the partitionId is
+     * appended to the path.
+     * @param path path of the log, or null to keep it in memory
+     * @param groupSize number of commit decisions forced together
+     * @param partitionCount number of partitions
+     * @return setting
+     */
+    public static Consumer<TransactionManager> getCoordinatorLogSetting(String path, int groupSize, int partitionCount) {
+        return tm -> tm.setCoordinatorLog(new CoordinatorLog(path == null || partitionCount == 1 ? path
+                : String.format("%s.%d", path, tm.getPartitionId()), groupSize));
+    }
+
+    /**
+     * Creates transaction managers with settings applied, giving their events to an output.
+     * @param settings settings
+     * @param partitionCount number of partitions
+     * @param output output
+     * @return transactionManagers
+     */
+    public static List<TransactionManager> createTransactionManagers(List<Consumer<TransactionManager>> settings,
+                                                                     int partitionCount, PrintStream output) {
+        List<TransactionManager> transactionManagers = TransactionManager.createPartitions(partitionCount);
+        for (TransactionManager transactionManager : transactionManagers) {
+            for (Consumer<TransactionManager> setting : settings) {
+                setting.accept(transactionManager);
+            }
+            transactionManager.setOutput(output);
+        }
+        return transactionManagers;
+    }
+
+    /**
+     * Executes every command of an input file, timestamped by its line number.
+     * @param transactionManager transactionManager
+     * @param inputPath path of the input file
+     * @return number of commands
+     * @throws IOException if fails to read
+     */
+    public static int replay(TransactionManager transactionManager, String inputPath) throws IOException {
+        return replay(transactionManager, inputPath, null);
+    }
+
+    /**
+     * Executes every command of an input file, which is a text trace timestamped by a clock of the
+     * timestamp oracle or a binary trace, recording commands of a text trace if a recorder is given.
+     * @param transactionManager transactionManager
+     * @param inputPath path of the input file
+     * @param recorder recorder, or null
+     * @return number of commands
+     * @throws IOException if fails to read or to record
+     */
+    public static int replay(TransactionManager transactionManager, String inputPath,
+                             BinaryTrace.Recorder recorder) throws IOException {
+        if (BinaryTrace.isBinaryTrace(inputPath)) {
+            return BinaryTrace.replay(transactionManager, inputPath);
+        }
+        TimestampOracle.Clock clock = transactionManager.getTimestampOracle().newClock();
+        int commandCount = 0;
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(inputPath))) {
+            String line = bufferedReader.readLine();
+            while (line != null) {
+                long timeStamp = clock.next();
+                if (recorder != null) {
+                    recorder.record(line, timeStamp);
+                }
+                execute(transactionManager, line, timeStamp);
+                commandCount++;
+                line = bufferedReader.readLine();
+            }
+        }
+        return commandCount;
+    }
+
+    /**
+     * Closes transaction managers and gives the stats asked for, then releases resources of the
+     * sites.
+     * @param transactionManagers transactionManagers
+     * @param printReadStats whether to give the number of reads served by each site
+     * @param printTransportStats whether to give the stats of transports
+     */
+    public static void finish(List<TransactionManager> transactionManagers, boolean printReadStats,
+                              boolean printTransportStats) {
+        for (TransactionManager transactionManager : transactionManagers) {
+            transactionManager.close();
+        }
+        if (printReadStats) {
+            transactionManagers.get(0).printReadDistribution();
+        }
+        transactionManagers.get(0).printAdmissionStats();
+        transactionManagers.get(0).printVersionSpillStats();
+        if (printTransportStats) {
+            for (TransactionManager transactionManager : transactionManagers) {
+                transactionManager.printTransportStats();
+            }
+        }
+        transactionManagers.get(0).closeSites();
+    }
+
+    /**
+     * Executes a command at a timestamp. Commands of a transaction go to the transaction manager
+     * owning it, and the others go to the given one.
+     * @param transactionManager transactionManager
+     * @param line command
+     * @param timeStamp timestamp
+     */
+    public static void execute(TransactionManager transactionManager, String line, long timeStamp) {
+        String[] tokens = line.split("[(,) ]+");
+        String option = tokens[0];
+        if (option.equals("begin")) {
+            String transaction = tokens[1];
+            int transactionID = Integer.parseInt(transaction.substring(1));
+            int priority = tokens.length > 2 ? Integer.parseInt(tokens[2]) : 0;
+            transactionManager.getOwner(transactionID).begin(transactionID, timeStamp, priority);
+        }
+        else if (option.equals("beginRO")) {
+            String transaction = tokens[1];
+            int transactionID = Integer.parseInt(transaction.substring(1));
+            transactionManager.getOwner(transactionID).beginRO(transactionID, timeStamp);
+        }
+        else if (option.equals("R")) {
+            int transactionID = Integer.parseInt(tokens[1].substring(1));
+            int variableId = Integer.parseInt(tokens[2].substring(1));
+            transactionManager.getOwner(transactionID).read(transactionID, variableId, timeStamp);
+        }
+        else if (option.equals("RU")) {
+            int transactionID = Integer.parseInt(tokens[1].substring(1));
+            int variableId = Integer.parseInt(tokens[2].substring(1));
+            transactionManager.getOwner(transactionID).readForUpdate(transactionID, variableId, timeStamp);
+        }
+        else if (option.equals("W")) {
+            int transactionID = Integer.parseInt(tokens[1].substring(1));
+            int variableId = Integer.parseInt(tokens[2].substring(1));
+            if (tokens[3].startsWith("\"")) {
+                String blob = line.substring(line.indexOf('"') + 1, line.lastIndexOf('"'));
+                transactionManager.getOwner(transactionID).writeBlob(transactionID, variableId,
+                        ByteBuffer.wrap(blob.getBytes(StandardCharsets.UTF_8)), timeStamp);
+            } else {
+                int value = Integer.parseInt(tokens[3]);
+                transactionManager.getOwner(transactionID).write(transactionID, variableId, value, timeStamp);
+            }
+        }
+        else if (option.equals("fail")) {
+            int siteID = Integer.parseInt(tokens[1]);
+            transactionManager.fail(siteID);
+        }
+        else if (option.equals("recover")) {
+            int siteID = Integer.parseInt(tokens[1]);
+            transactionManager.recover(siteID);
+        }
+        else if (option.equals("end")) {
+            String transaction = tokens[1];
+            int transactionID = Integer.parseInt(transaction.substring(1));
+            transactionManager.getOwner(transactionID).end(transactionID, timeStamp);
+        }
+        else {
+            transactionManager.dump();
+        }
+        transactionManager.tickAll();
     }
 }
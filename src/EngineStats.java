@@ -0,0 +1,161 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class counts what the transaction managers of a replay do: operations, commits, aborts by
+ * reason, and how long transactions stay blocked. Operations are counted by ticks, one per
+ * command, and the latency of a block is the number of operations from the command blocking a
+ * transaction to the one unblocking it. Partitions share one instance.
+ * @version 12/10/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class EngineStats {
+    public enum AbortReason {
+        DEADLOCK, SITE_FAILURE, NO_VOTE, VALIDATION
+    }
+
+    private long operationCount;
+    private long commitCount;
+    private long[] abortCounts;                 // <abortReason, number of aborts>
+    private Map<Integer, Long> blockedSince;    // <transactionId, operationCount at block>
+    private long[] blockLatencies;
+    private int blockLatencyCount;
+
+    public EngineStats() {
+        operationCount = 0;
+        commitCount = 0;
+        abortCounts = new long[AbortReason.values().length];
+        blockedSince = new HashMap<>();
+        blockLatencies = new long[16];
+        blockLatencyCount = 0;
+    }
+
+    /**
+     * Counts an operation.
+     */
+    public void tick() {
+        operationCount++;
+    }
+
+    /**
+     * Records that a transaction is blocked.
+     * @param tid transactionId
+     */
+    public void recordBlock(int tid) {
+        blockedSince.put(tid, operationCount);
+    }
+
+    /**
+     * Records that a blocked transaction is unblocked, with the latency of its block.
+     * @param tid transactionId
+     */
+    public void recordUnblock(int tid) {
+        Long since = blockedSince.remove(tid);
+        if (since != null) {
+            addBlockLatency(operationCount - since);
+        }
+    }
+
+    /**
+     * Adds the latency of a block.
+     * @param latency latency in operations
+     */
+    private void addBlockLatency(long latency) {
+        if (blockLatencyCount == blockLatencies.length) {
+            blockLatencies = Arrays.copyOf(blockLatencies, 2 * blockLatencies.length);
+        }
+        blockLatencies[blockLatencyCount++] = latency;
+    }
+
+    /**
+     * Records a commit.
+     * @param tid transactionId
+     */
+    public void recordCommit(int tid) {
+        blockedSince.remove(tid);
+        commitCount++;
+    }
+
+    /**
+     * Records an abort. A blocked transaction that aborts gives no latency.
+     * @param tid transactionId
+     * @param reason abortReason
+     */
+    public void recordAbort(int tid, AbortReason reason) {
+        blockedSince.remove(tid);
+        abortCounts[reason.ordinal()]++;
+    }
+
+    /**
+     * Adds the counts and latencies of another replay to these.
+     * @param s stats of another replay
+     */
+    public void add(EngineStats s) {
+        operationCount += s.operationCount;
+        commitCount += s.commitCount;
+        for (int i = 0; i < abortCounts.length; i++) {
+            abortCounts[i] += s.abortCounts[i];
+        }
+        for (int i = 0; i < s.blockLatencyCount; i++) {
+            addBlockLatency(s.blockLatencies[i]);
+        }
+    }
+
+    /**
+     * Returns whether a transaction is blocked.
+     * @param tid transactionId
+     * @return boolean
+     */
+    public boolean isBlocked(int tid) {
+        return blockedSince.containsKey(tid);
+    }
+
+    /**
+     * Gets number of operations.
+     * @return operationCount
+     */
+    public long getOperationCount() {
+        return operationCount;
+    }
+
+    /**
+     * Gets number of commits.
+     * @return commitCount
+     */
+    public long getCommitCount() {
+        return commitCount;
+    }
+
+    /**
+     * Gets number of aborts for a reason.
+     * @param reason abortReason
+     * @return abortCount
+     */
+    public long getAbortCount(AbortReason reason) {
+        return abortCounts[reason.ordinal()];
+    }
+
+    /**
+     * Gets number of blocks that ended in an unblock.
+     * @return blockLatencyCount
+     */
+    public int getBlockCount() {
+        return blockLatencyCount;
+    }
+
+    /**
+     * Gets a percentile of block latencies by the nearest rank.
+     * @param p percentile, between 0 and 100
+     * @return latency in operations, or 0 if no transaction was unblocked
+     */
+    public long getBlockLatencyPercentile(double p) {
+        if (blockLatencyCount == 0) {
+            return 0;
+        }
+        long[] latencies = Arrays.copyOf(blockLatencies, blockLatencyCount);
+        Arrays.sort(latencies);
+        int rank = (int) Math.ceil(p / 100 * latencies.length);
+        return latencies[Math.max(0, rank - 1)];
+    }
+}
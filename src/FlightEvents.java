@@ -0,0 +1,147 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * This class holds the JDK Flight Recorder events of transaction managers and sites. Events are
+ * timed by JFR from begin to commit, and cost almost nothing unless a recording enables them, for
+ * example with {@code -XX:StartFlightRecording}.
+ * @version 12/08/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class FlightEvents {
+    private FlightEvents() {
+    }
+
+    /**
+     * This event represents a read or write, including a retry of a waiting one.
+     */
+    @Name("repcrec.Operation")
+    @Label("Operation")
+    @Category({"RepCRec", "Transaction Manager"})
+    @Description("Read or write of a transaction, blocked or not")
+    public static class OperationEvent extends Event {
+        @Label("Transaction Id")
+        int transactionId;
+
+        @Label("Variable Id")
+        int variableId;
+
+        @Label("Site Id")
+        @Description("Site the value is read from, or 0 for writes and reads of buffered writes")
+        int siteId;
+
+        @Label("Write")
+        boolean isWrite;
+
+        @Label("Blocked")
+        @Description("Whether the transaction is blocked after the operation")
+        boolean isBlocked;
+
+        @Label("Unblocked")
+        @Description("Whether the operation was waiting and is executed now")
+        boolean isUnblocked;
+    }
+
+    /**
+     * This event represents the end of a transaction.
+     */
+    @Name("repcrec.End")
+    @Label("End")
+    @Category({"RepCRec", "Transaction Manager"})
+    @Description("End of a transaction, including two-phase commit")
+    public static class EndEvent extends Event {
+        @Label("Transaction Id")
+        int transactionId;
+
+        @Label("Read-only")
+        boolean isReadOnly;
+
+        @Label("Committed")
+        @Description("Whether the transaction commits, or waits for its commit decision to be forced")
+        boolean isCommitted;
+    }
+
+    /**
+     * This event represents an abort, including the retry of operations it unblocks.
+     */
+    @Name("repcrec.Abort")
+    @Label("Abort")
+    @Category({"RepCRec", "Transaction Manager"})
+    public static class AbortEvent extends Event {
+        @Label("Transaction Id")
+        int transactionId;
+    }
+
+    /**
+     * This event represents a search for a deadlock in the waits-for graph.
+     */
+    @Name("repcrec.DeadlockDetection")
+    @Label("Deadlock Detection")
+    @Category({"RepCRec", "Transaction Manager"})
+    public static class DeadlockDetectionEvent extends Event {
+        @Label("Transaction Id")
+        @Description("Transaction the search starts from")
+        int transactionId;
+
+        @Label("Cycle Length")
+        @Description("Number of transactions in the deadlock, or 0 if there is none")
+        int cycleLength;
+
+        @Label("Victim Transaction Id")
+        @Description("Transaction aborted, or 0 if there is no deadlock")
+        int victimTransactionId;
+    }
+
+    /**
+     * This event represents a retry of the waiting operations of all partitions.
+     */
+    @Name("repcrec.Retry")
+    @Label("Retry")
+    @Category({"RepCRec", "Transaction Manager"})
+    public static class RetryEvent extends Event {
+        @Label("Waiting Before")
+        int waitingBeforeCount;
+
+        @Label("Waiting After")
+        int waitingAfterCount;
+    }
+
+    /**
+     * This event represents a commit at a site.
+     */
+    @Name("repcrec.SiteCommit")
+    @Label("Site Commit")
+    @Category({"RepCRec", "Site"})
+    public static class SiteCommitEvent extends Event {
+        @Label("Site Id")
+        int siteId;
+
+        @Label("Transaction Id")
+        int transactionId;
+    }
+
+    /**
+     * This event represents a failure of a site.
+     */
+    @Name("repcrec.SiteFailure")
+    @Label("Site Failure")
+    @Category({"RepCRec", "Site"})
+    public static class SiteFailureEvent extends Event {
+        @Label("Site Id")
+        int siteId;
+    }
+
+    /**
+     * This event represents a recovery of a site.
+     */
+    @Name("repcrec.SiteRecovery")
+    @Label("Site Recovery")
+    @Category({"RepCRec", "Site"})
+    public static class SiteRecoveryEvent extends Event {
+        @Label("Site Id")
+        int siteId;
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * This class stores variables as objects on the heap.
+ * @version 12/07/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class HeapVariableStore implements VariableStore {
+    private Map<Integer, Variable> variables;   // <variableId, variable>
+
+    public HeapVariableStore(Iterable<Integer> vids) {
+        variables = new HashMap<>();
+        for (int vid : vids) {
+            variables.put(vid, new Variable(vid));
+        }
+    }
+
+    /**
+     * Keeps the newest n committed values of each variable in memory, and spills older ones to
+     * segments of the site.
+     * @param segments segments of the site
+     * @param n maxInMemoryVersionCount
+     */
+    public void setVersionSpill(VersionSegments segments, int n) {
+        for (Variable variable : variables.values()) {
+            variable.setVersionSpill(segments, n);
+        }
+    }
+
+    @Override
+    public boolean contains(int vid) {
+        return variables.containsKey(vid);
+    }
+
+    @Override
+    public boolean isReadable(int vid) {
+        return variables.get(vid).isReadable();
+    }
+
+    @Override
+    public void setReadable(int vid, boolean r) {
+        if (r) {
+            variables.get(vid).setReadable();
+        } else {
+            variables.get(vid).fail();
+        }
+    }
+
+    @Override
+    public int getValueToCommit(int vid) {
+        return variables.get(vid).getValueToCommit();
+    }
+
+    @Override
+    public int getTransactionIdToCommit(int vid) {
+        return variables.get(vid).getTransactionIdToCommit();
+    }
+
+    @Override
+    public boolean isBlobToCommit(int vid) {
+        return variables.get(vid).isBlobToCommit();
+    }
+
+    @Override
+    public void setValueToCommit(int vid, int v, boolean b, int tid, int ver) {
+        Variable variable = variables.get(vid);
+        variable.setValueToCommit(v);
+        variable.setBlobToCommit(b);
+        variable.setTransactionIdToCommit(tid);
+        variable.setVersionToCommit(ver);
+    }
+
+    @Override
+    public int getLastCommittedValue(int vid) {
+        return variables.get(vid).getLastCommittedValue();
+    }
+
+    @Override
+    public boolean isLastCommittedBlob(int vid) {
+        return variables.get(vid).isLastCommittedBlob();
+    }
+
+    @Override
+    public int getLastCommittedValueBefore(int vid, long ts) {
+        return variables.get(vid).getLastCommittedValueBefore(ts);
+    }
+
+    @Override
+    public boolean isCommittedBlobBefore(int vid, long ts) {
+        return variables.get(vid).isCommittedBlobBefore(ts);
+    }
+
+    @Override
+    public long getLastCommitTimestampBefore(int vid, long ts) {
+        return variables.get(vid).getLastCommitTimestampBefore(ts);
+    }
+
+    @Override
+    public int getVersion(int vid) {
+        return variables.get(vid).getVersion();
+    }
+
+    @Override
+    public void commit(int vid, long ts) {
+        variables.get(vid).commit(ts);
+    }
+
+    @Override
+    public void catchUp(int vid, VariableStore source, IntUnaryOperator copyBlob) {
+        variables.get(vid).catchUp(((HeapVariableStore) source).variables.get(vid), copyBlob);
+    }
+}
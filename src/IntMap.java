@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class maps int keys to values by open addressing with linear probing, so that looking up
+ * a key neither boxes it nor allocates an entry. Integer.MIN_VALUE cannot be used as a key.
+ * @param <V> value type
+ * @version 12/07/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class IntMap<V> {
+    private static final int FREE = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    public IntMap() {
+        keys = new int[16];
+        Arrays.fill(keys, FREE);
+        values = new Object[16];
+        size = 0;
+    }
+
+    /**
+     * Spreads the bits of a key.
+     * @param key key
+     * @return hash
+     */
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Gets the slot of a key, or the free slot where it would be put.
+     * @param key key
+     * @return slot
+     */
+    private int getSlot(int key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != FREE && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Returns whether a key is mapped.
+     * @param key key
+     * @return boolean
+     */
+    public boolean containsKey(int key) {
+        return keys[getSlot(key)] == key;
+    }
+
+    /**
+     * Gets the value of a key.
+     * @param key key
+     * @return value, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int slot = getSlot(key);
+        return keys[slot] == key ? (V) values[slot] : null;
+    }
+
+    /**
+     * Maps a key to a value.
+     * @param key key
+     * @param value value
+     */
+    public void put(int key, V value) {
+        int slot = getSlot(key);
+        if (keys[slot] != key) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                slot = getSlot(key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Removes the mapping of a key, shifting back the keys probed past it.
+     * @param key key
+     */
+    public void remove(int key) {
+        int mask = keys.length - 1;
+        int slot = getSlot(key);
+        if (keys[slot] != key) {
+            return;
+        }
+        size--;
+        int next = (slot + 1) & mask;
+        while (keys[next] != FREE) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                keys[slot] = keys[next];
+                values[slot] = values[next];
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[slot] = FREE;
+        values[slot] = null;
+    }
+
+    /**
+     * Doubles the number of slots.
+     */
+    private void grow() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[2 * oldKeys.length];
+        Arrays.fill(keys, FREE);
+        values = new Object[2 * oldValues.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int slot = getSlot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Gets number of mappings.
+     * @return size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Copies the values into a list.
+     * @return values
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> valueList = new ArrayList<>(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) {
+                valueList.add((V) values[i]);
+            }
+        }
+        return valueList;
+    }
+}
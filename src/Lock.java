@@ -5,7 +5,7 @@
  */
 public class Lock {
     public enum LockType {
-        READ_LOCK, WRITE_LOCK
+        READ_LOCK, UPDATE_LOCK, WRITE_LOCK
     }
 
     private int transactionId;
@@ -43,9 +43,13 @@ public class Lock {
     }
 
     /**
-     * Promotes lock to write lock.
+     * Promotes lock to a stronger lock type. Lock types from the weakest to the strongest are
+     * read, update and write, and a weaker lock type leaves the lock as it is.
+     * @param t lock type
      */
-    public void promoteLockType() {
-        type = LockType.WRITE_LOCK;
+    public void promoteLockType(LockType t) {
+        if (t.ordinal() > type.ordinal()) {
+            type = t;
+        }
     }
 }
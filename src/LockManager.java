@@ -1,9 +1,12 @@
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
- * This class maintains locks for a single variable on a certain site.
+ * This class maintains locks for a single variable on a certain site. An update lock is taken by
+ * a read for update. It is compatible with read locks of other transactions, but not with their
+ * update or write locks, so at most one transaction reads a variable intending to write it, and
+ * two of them never deadlock upgrading their read locks.
  * @version 12/03/2019
  * @author Xinyi Liu, Ming Xu
  */
@@ -33,6 +36,8 @@ public class LockManager {
     public boolean canAcquireLock(Operation.OperationType t, int tid) {
         if (Operation.OperationType.READ.equals(t)) {
             return canAcquireReadLock(tid);
+        } else if (Operation.OperationType.READ_FOR_UPDATE.equals(t)) {
+            return canAcquireUpdateLock(tid);
         } else {
             return canAcquireWriteLock(tid);
         }
@@ -51,6 +56,21 @@ public class LockManager {
         return true;
     }
 
+    /**
+     * Returns whether a transaction can acquire an update lock.
+     * @param tid transactionId
+     * @return boolean
+     */
+    private boolean canAcquireUpdateLock(int tid) {
+        for (int i = 0; i < locks.size(); i++) {
+            Lock lock = locks.get(i);
+            if (lock.getTransactionId() != tid && !Lock.LockType.READ_LOCK.equals(lock.getType())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns whether a transaction can acquire a write lock.
      * @param tid transactionId
@@ -75,6 +95,8 @@ public class LockManager {
     public void lock(Operation.OperationType t, int tid, int vid) {
         if (Operation.OperationType.READ.equals(t)) {
             lockForRead(tid, vid);
+        } else if (Operation.OperationType.READ_FOR_UPDATE.equals(t)) {
+            lockForUpdate(tid, vid);
         } else {
             lockForWrite(tid, vid);
         }
@@ -94,6 +116,22 @@ public class LockManager {
         }
     }
 
+    /**
+     * Adds update lock on a variable, promoting a read lock of the transaction.
+     * @param tid transactionId
+     * @param vid variableId
+     */
+    private void lockForUpdate(int tid, int vid) {
+        if (canAcquireUpdateLock(tid)) {
+            Lock transactionLock = getLock(tid);
+            if (transactionLock == null) {
+                locks.add(new Lock(tid, vid, Lock.LockType.UPDATE_LOCK));
+            } else {
+                transactionLock.promoteLockType(Lock.LockType.UPDATE_LOCK);
+            }
+        }
+    }
+
     /**
      * Adds write lock on a variable.
      * @param tid transactionId
@@ -105,7 +143,7 @@ public class LockManager {
             if (transactionLock == null) {
                 locks.add(new Lock(tid, vid, Lock.LockType.WRITE_LOCK));
             } else {
-                transactionLock.promoteLockType();
+                transactionLock.promoteLockType(Lock.LockType.WRITE_LOCK);
             }
         }
     }
@@ -115,14 +153,31 @@ public class LockManager {
      * @param tid transactionId.
      */
     public void unlock(int tid) {
-        locks.removeIf(l -> l.getTransactionId() == tid);
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            if (locks.get(i).getTransactionId() == tid) {
+                locks.remove(i);
+            }
+        }
     }
 
     /**
-     * Release all locks.
+     * Release all locks except those of some transactions.
+     * @param tids transactionIds keeping their locks
      */
-    public void unlockAll() {
-        locks.clear();
+    public void unlockAllExcept(BitSet tids) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            if (!tids.get(locks.get(i).getTransactionId())) {
+                locks.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Returns whether any transaction is holding a write lock.
+     * @return boolean
+     */
+    public boolean isWriteLocked() {
+        return getWriteLock() != null;
     }
 
     /**
@@ -139,11 +194,24 @@ public class LockManager {
     }
 
     /**
-     * Gets all transactions that hold lock on this variable.
-     * @return transactionIds of lock holders
+     * Writes transactionIds of all transactions that hold lock on this variable into a buffer.
+     * Only as many as fit are written.
+     * @param buffer buffer of transactionIds
+     * @return number of lock holders
+     */
+    public int getLockHolders(int[] buffer) {
+        for (int i = 0; i < locks.size() && i < buffer.length; i++) {
+            buffer[i] = locks.get(i).getTransactionId();
+        }
+        return locks.size();
+    }
+
+    /**
+     * Gets number of locks on this variable.
+     * @return lockCount
      */
-    public List<Integer> getLockHolders() {
-        return locks.stream().map(lock -> lock.getTransactionId()).collect(Collectors.toList());
+    public int getLockCount() {
+        return locks.size();
     }
 
     /**
@@ -151,7 +219,8 @@ public class LockManager {
      * @return boolean
      */
     private Lock getWriteLock() {
-        for (Lock lock : locks) {
+        for (int i = 0; i < locks.size(); i++) {
+            Lock lock = locks.get(i);
             if (Lock.LockType.WRITE_LOCK.equals(lock.getType())) {
                 return lock;
             }
@@ -165,7 +234,8 @@ public class LockManager {
      * @return lock
      */
     private Lock getLock(int tid) {
-        for (Lock lock : locks) {
+        for (int i = 0; i < locks.size(); i++) {
+            Lock lock = locks.get(i);
             if (lock.getTransactionId() == tid) {
                 return lock;
             }
@@ -0,0 +1,106 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class delivers messages to sites in the same process by calling them directly. A latency
+ * can be injected for every round trip. With batching, a call to send is one round trip since
+ * all batches are in flight together. Without batching, every message is a round trip of its own.
+ * @version 12/06/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class LoopbackTransport implements SiteTransport {
+    private Map<Integer, DataManager> sites;    // <siteId, dataManager>
+    private long latencyNanos;
+    private boolean isBatching;
+    private long roundTripCount;
+    private long messageCount;
+    private long waitNanos;
+
+    public LoopbackTransport(long latency, boolean b) {
+        latencyNanos = latency;
+        isBatching = b;
+        roundTripCount = 0;
+        messageCount = 0;
+        waitNanos = 0;
+    }
+
+    @Override
+    public void connect(Map<Integer, DataManager> s) {
+        sites = s;
+    }
+
+    @Override
+    public void send(Map<Integer, List<SiteMessage>> batches) {
+        long start = System.nanoTime();
+        int batchMessageCount = 0;
+        for (Map.Entry<Integer, List<SiteMessage>> batch : batches.entrySet()) {
+            DataManager site = sites.get(batch.getKey());
+            for (SiteMessage message : batch.getValue()) {
+                site.handle(message);
+                batchMessageCount++;
+            }
+        }
+        int batchRoundTripCount = isBatching ? Math.min(1, batchMessageCount) : batchMessageCount;
+        for (int i = 0; i < batchRoundTripCount; i++) {
+            delay();
+        }
+        roundTripCount += batchRoundTripCount;
+        messageCount += batchMessageCount;
+        waitNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void send(int sid, SiteMessage message) {
+        long start = System.nanoTime();
+        sites.get(sid).handle(message);
+        delay();
+        roundTripCount++;
+        messageCount++;
+        waitNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void send(int[] siteIds, SiteMessage[] messages, int count) {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            sites.get(siteIds[i]).handle(messages[i]);
+        }
+        int batchRoundTripCount = isBatching ? Math.min(1, count) : count;
+        for (int i = 0; i < batchRoundTripCount; i++) {
+            delay();
+        }
+        roundTripCount += batchRoundTripCount;
+        messageCount += count;
+        waitNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Waits for the injected latency of a round trip.
+     */
+    private void delay() {
+        long deadline = System.nanoTime() + latencyNanos;
+        while (latencyNanos > 0 && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(deadline - System.nanoTime());
+        }
+    }
+
+    @Override
+    public long getRoundTripCount() {
+        return roundTripCount;
+    }
+
+    @Override
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    @Override
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,217 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * This class stores variables off the heap in columns indexed by variableId. Committed values of
+ * each variable form a chain of records in an append-only version log, from the newest record
+ * back to the oldest one. The garbage collector sees a fixed number of buffers no matter how many
+ * variables are stored. Records are addressed by int offsets, so the version log of a site holds
+ * at most 2 GiB, about 89 million committed values.
+ * @version 12/07/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class OffHeapVariableStore implements VariableStore {
+    private static final byte HOSTED = 1;
+    private static final byte READABLE = 2;
+    private static final byte BLOB_TO_COMMIT = 4;
+    private static final byte LAST_COMMITTED_BLOB = 8;
+    private static final int RECORD_SIZE = 24;      // timestamp, committedValue, previous record, isBlob, padding
+    private static final int NO_RECORD = -1;
+
+    private ByteBuffer flags;
+    private ByteBuffer lastCommittedValues;
+    private ByteBuffer valuesToCommit;
+    private ByteBuffer transactionIdsToCommit;
+    private ByteBuffer versions;
+    private ByteBuffer versionsToCommit;
+    private ByteBuffer lastRecords;
+    private ByteBuffer versionLog;
+    private int[] missingRecords;                   // records of a source missing from a catch-up, newest first
+
+    public OffHeapVariableStore(Iterable<Integer> vids, int capacity) {
+        flags = allocate(capacity + 1);
+        lastCommittedValues = allocate(4 * (capacity + 1));
+        valuesToCommit = allocate(4 * (capacity + 1));
+        transactionIdsToCommit = allocate(4 * (capacity + 1));
+        versions = allocate(4 * (capacity + 1));
+        versionsToCommit = allocate(4 * (capacity + 1));
+        lastRecords = allocate(4 * (capacity + 1));
+        versionLog = allocate(RECORD_SIZE * (capacity + 1));
+        missingRecords = new int[16];
+        for (int vid : vids) {
+            flags.put(vid, (byte) (HOSTED | READABLE));
+            lastCommittedValues.putInt(4 * vid, 10 * vid);
+            valuesToCommit.putInt(4 * vid, 10 * vid);
+            lastRecords.putInt(4 * vid, NO_RECORD);
+            appendRecord(vid, 0, 10 * vid, false);
+        }
+    }
+
+    /**
+     * Allocates a zeroed direct buffer.
+     * @param size size in bytes
+     * @return buffer
+     */
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Appends a committed value to the chain of a variable, doubling the version log up to its
+     * limit of Integer.MAX_VALUE bytes if it is full.
+     * @param vid variableId
+     * @param ts timestamp
+     * @param v committedValue
+     * @param b whether committedValue is a blob handle
+     * @throws IllegalStateException if the version log is full
+     */
+    private void appendRecord(int vid, long ts, int v, boolean b) {
+        if (versionLog.position() + RECORD_SIZE > versionLog.capacity()) {
+            if (versionLog.capacity() > Integer.MAX_VALUE - RECORD_SIZE) {
+                throw new IllegalStateException(String.format("version log full at %d bytes", versionLog.capacity()));
+            }
+            ByteBuffer grownVersionLog = allocate((int) Math.min(2L * versionLog.capacity(), Integer.MAX_VALUE));
+            versionLog.flip();
+            grownVersionLog.put(versionLog);
+            versionLog = grownVersionLog;
+        }
+        int record = versionLog.position();
+        versionLog.putLong(ts).putInt(v).putInt(lastRecords.getInt(4 * vid)).putInt(b ? 1 : 0).putInt(0);
+        lastRecords.putInt(4 * vid, record);
+    }
+
+    /**
+     * Gets the newest record of a variable committed at or before a timestamp.
+     * @param vid variableId
+     * @param ts timestamp
+     * @return record, or NO_RECORD
+     */
+    private int getLastRecordBefore(int vid, long ts) {
+        int record = lastRecords.getInt(4 * vid);
+        while (record != NO_RECORD && versionLog.getLong(record) > ts) {
+            record = versionLog.getInt(record + 12);
+        }
+        return record;
+    }
+
+    @Override
+    public boolean contains(int vid) {
+        return vid >= 0 && vid < flags.capacity() && (flags.get(vid) & HOSTED) != 0;
+    }
+
+    @Override
+    public boolean isReadable(int vid) {
+        return (flags.get(vid) & READABLE) != 0;
+    }
+
+    @Override
+    public void setReadable(int vid, boolean r) {
+        setFlag(vid, READABLE, r);
+    }
+
+    /**
+     * Sets or clears a flag of a variable.
+     * @param vid variableId
+     * @param flag flag
+     * @param set whether to set the flag
+     */
+    private void setFlag(int vid, byte flag, boolean set) {
+        flags.put(vid, (byte) (set ? flags.get(vid) | flag : flags.get(vid) & ~flag));
+    }
+
+    @Override
+    public int getValueToCommit(int vid) {
+        return valuesToCommit.getInt(4 * vid);
+    }
+
+    @Override
+    public int getTransactionIdToCommit(int vid) {
+        return transactionIdsToCommit.getInt(4 * vid);
+    }
+
+    @Override
+    public boolean isBlobToCommit(int vid) {
+        return (flags.get(vid) & BLOB_TO_COMMIT) != 0;
+    }
+
+    @Override
+    public void setValueToCommit(int vid, int v, boolean b, int tid, int ver) {
+        valuesToCommit.putInt(4 * vid, v);
+        setFlag(vid, BLOB_TO_COMMIT, b);
+        transactionIdsToCommit.putInt(4 * vid, tid);
+        versionsToCommit.putInt(4 * vid, ver);
+    }
+
+    @Override
+    public int getLastCommittedValue(int vid) {
+        return lastCommittedValues.getInt(4 * vid);
+    }
+
+    @Override
+    public boolean isLastCommittedBlob(int vid) {
+        return (flags.get(vid) & LAST_COMMITTED_BLOB) != 0;
+    }
+
+    @Override
+    public int getLastCommittedValueBefore(int vid, long ts) {
+        int record = getLastRecordBefore(vid, ts);
+        return record == NO_RECORD ? 0 : versionLog.getInt(record + 8);
+    }
+
+    @Override
+    public boolean isCommittedBlobBefore(int vid, long ts) {
+        int record = getLastRecordBefore(vid, ts);
+        return record != NO_RECORD && versionLog.getInt(record + 16) != 0;
+    }
+
+    @Override
+    public long getLastCommitTimestampBefore(int vid, long ts) {
+        int record = getLastRecordBefore(vid, ts);
+        return record == NO_RECORD ? 0 : versionLog.getLong(record);
+    }
+
+    @Override
+    public int getVersion(int vid) {
+        return versions.getInt(4 * vid);
+    }
+
+    @Override
+    public void commit(int vid, long ts) {
+        int v = valuesToCommit.getInt(4 * vid);
+        lastCommittedValues.putInt(4 * vid, v);
+        setFlag(vid, LAST_COMMITTED_BLOB, isBlobToCommit(vid));
+        appendRecord(vid, ts, v, isBlobToCommit(vid));
+        versions.putInt(4 * vid, Math.max(versions.getInt(4 * vid) + 1, versionsToCommit.getInt(4 * vid)));
+        setReadable(vid, true);
+    }
+
+    @Override
+    public void catchUp(int vid, VariableStore source, IntUnaryOperator copyBlob) {
+        OffHeapVariableStore store = (OffHeapVariableStore) source;
+        long lastCommitTimestamp = getLastCommitTimestampBefore(vid, Long.MAX_VALUE);
+        int missingRecordCount = 0;
+        int record = store.lastRecords.getInt(4 * vid);
+        while (record != NO_RECORD && store.versionLog.getLong(record) > lastCommitTimestamp) {
+            if (missingRecordCount == missingRecords.length) {
+                missingRecords = Arrays.copyOf(missingRecords, 2 * missingRecords.length);
+            }
+            missingRecords[missingRecordCount++] = record;
+            record = store.versionLog.getInt(record + 12);
+        }
+        for (int i = missingRecordCount - 1; i >= 0; i--) {
+            record = missingRecords[i];
+            int v = store.versionLog.getInt(record + 8);
+            boolean b = store.versionLog.getInt(record + 16) != 0;
+            if (b) {
+                v = copyBlob.applyAsInt(v);
+            }
+            appendRecord(vid, store.versionLog.getLong(record), v, b);
+            lastCommittedValues.putInt(4 * vid, v);
+            setFlag(vid, LAST_COMMITTED_BLOB, b);
+        }
+        versions.putInt(4 * vid, Math.max(getVersion(vid), store.getVersion(vid)));
+        setReadable(vid, true);
+    }
+}
@@ -1,32 +1,87 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 /**
- * This class represents a read or write operation.
+ * This class represents a read or write operation. A read for update reads like a read, but
+ * takes an update lock for a later write. A write carries either an int value or a
+ * variable-length blob value.
  * @version 12/03/2019
  * @author Xinyi Liu, Ming Xu
  */
 public class Operation {
     public enum OperationType {
-        READ, WRITE
+        READ, WRITE, READ_FOR_UPDATE
     }
 
-    private int timestamp;
+    private long timestamp;
     private int transactionId;
     private int variableId;
     private OperationType type;
     private int value;
+    private ByteBuffer blob;
+
+    public Operation(long ts, int tid, int vid, OperationType t, int v) {
+        timestamp = ts;
+        transactionId = tid;
+        variableId = vid;
+        type = t;
+        value = v;
+    }
 
-    public Operation(int ts, int tid, int vid, OperationType t, int v) {
+    public Operation(long ts, int tid, int vid, ByteBuffer b) {
+        this(ts, tid, vid, OperationType.WRITE, 0);
+        blob = b;
+    }
+
+    /**
+     * Makes this operation another one, so that a single object serves every operation that
+     * does not have to wait.
+     * @param ts timestamp
+     * @param tid transactionId
+     * @param vid variableId
+     * @param t operationType
+     * @param v value
+     * @param b blob, or null
+     * @return this operation
+     */
+    public Operation reset(long ts, int tid, int vid, OperationType t, int v, ByteBuffer b) {
         timestamp = ts;
         transactionId = tid;
         variableId = vid;
         type = t;
         value = v;
+        blob = b;
+        return this;
+    }
+
+    /**
+     * Copies this operation.
+     * @return operation
+     */
+    public Operation copy() {
+        Operation operation = new Operation(timestamp, transactionId, variableId, type, value);
+        operation.blob = blob;
+        return operation;
+    }
+
+    /**
+     * Formats an int value, or a blob value as a quoted string if there is one.
+     * @param v value
+     * @param b blob, or null
+     * @return formatted value
+     */
+    public static String formatValue(int v, ByteBuffer b) {
+        if (b == null) {
+            return String.valueOf(v);
+        }
+        return "\"" + StandardCharsets.UTF_8.decode(b.duplicate()) + "\"";
     }
 
     /**
      * Gets timestamp.
      * @return timestamp.
      */
-    public int getTimestamp() {
+    public long getTimestamp() {
         return timestamp;
     }
 
@@ -54,6 +109,14 @@ public class Operation {
         return type;
     }
 
+    /**
+     * Returns whether this operation is a read, with or without update.
+     * @return boolean
+     */
+    public boolean isRead() {
+        return !OperationType.WRITE.equals(type);
+    }
+
     /**
      * Gets value.
      * @return value
@@ -62,12 +125,20 @@ public class Operation {
         return value;
     }
 
+    /**
+     * Gets blob value of a write.
+     * @return blob, or null if the value is an int
+     */
+    public ByteBuffer getBlob() {
+        return blob;
+    }
+
     /**
      * Sets value.
      * @param v value
      */
     public void setValue(int v) {
-        if (OperationType.READ.equals(type)) {
+        if (isRead()) {
             value = v;
         }
     }
@@ -0,0 +1,377 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class represents a message sent from the transaction manager of a partition to the one of
+ * another partition of the same group, together with the reply. A partition learns about
+ * transactions, waiting operations and waits-for edges of another partition only by these
+ * messages. A deadlock probe is passed along waits-for edges from partition to partition, and
+ * carries the path it has followed with the transactions on it, so that the partition finding a
+ * cycle chooses the victim without asking the owners again. A variable is owned by the partition
+ * of its variableId modulo the number of partitions, which is told when a partition starts or
+ * stops having operations waiting on it, so that a conflict query goes to the owner of the
+ * variable and is passed on only to the partitions with operations waiting on it.
+ * @version 12/12/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class PartitionMessage {
+    public enum MessageType {
+        PROBE, GET_TRANSACTION, IS_WAITING, IS_BLOCKED, COUNT_BLOCKED, COUNT_WAITING, GET_WAITING_OPERATIONS,
+        GET_CONFLICT_WAITING_BEFORE, SCAN_CONFLICT_WAITING_BEFORE, START_WAITING, STOP_WAITING, RETRY,
+        REMOVE_WAITS_FOR, ABORT, FAIL, COMPLETE_COMMITS
+    }
+
+    /**
+     * This class describes a transaction of a partition, as needed to choose a deadlock victim.
+     */
+    public static class Frame {
+        private int transactionId;
+        private long timestamp;
+        private int effectivePriority;
+        private int executedOperationCount;
+
+        public Frame(int tid, long ts, int p, int n) {
+            transactionId = tid;
+            timestamp = ts;
+            effectivePriority = p;
+            executedOperationCount = n;
+        }
+
+        /**
+         * Gets transactionId.
+         * @return transactionId
+         */
+        public int getTransactionId() {
+            return transactionId;
+        }
+
+        /**
+         * Gets timestamp of the transaction.
+         * @return timestamp
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Gets effective priority of the transaction.
+         * @return effective priority
+         */
+        public int getEffectivePriority() {
+            return effectivePriority;
+        }
+
+        /**
+         * Gets number of operations the transaction has executed.
+         * @return executedOperationCount
+         */
+        public int getExecutedOperationCount() {
+            return executedOperationCount;
+        }
+    }
+
+    private MessageType type;
+    private int transactionId;
+    private int variableId;
+    private long timestamp;
+    private boolean isUpdate;
+    private boolean isWriteOnly;
+    private int partitionId;
+    private int priority;
+    private int siteId;
+    private int[] lockHolders;
+    private int lockHolderCount;
+    private Operation operation;
+    private List<Frame> path;                   // transactions the probe has followed, in order
+    private List<Integer> visited;              // transactionIds the probe has visited
+
+    private boolean result;
+    private int count;
+    private Frame frame;
+    private List<Operation> operations;
+
+    public PartitionMessage(MessageType t, int tid) {
+        type = t;
+        transactionId = tid;
+    }
+
+    /**
+     * Creates a deadlock probe starting from a transaction.
+     * @param tid transactionId
+     * @return probe
+     */
+    public static PartitionMessage newProbe(int tid) {
+        PartitionMessage probe = new PartitionMessage(MessageType.PROBE, tid);
+        probe.path = new ArrayList<>();
+        probe.visited = new ArrayList<>();
+        return probe;
+    }
+
+    /**
+     * Gets type of message.
+     * @return messageType
+     */
+    public MessageType getType() {
+        return type;
+    }
+
+    /**
+     * Gets transactionId.
+     * @return transactionId
+     */
+    public int getTransactionId() {
+        return transactionId;
+    }
+
+    /**
+     * Sets transactionId, which a probe changes to the transaction it is passed to.
+     * @param tid transactionId
+     */
+    public void setTransactionId(int tid) {
+        transactionId = tid;
+    }
+
+    /**
+     * Gets variableId.
+     * @return variableId
+     */
+    public int getVariableId() {
+        return variableId;
+    }
+
+    /**
+     * Gets timestamp.
+     * @return timestamp
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Sets the variable and the timestamp of a new operation that looks for a conflict waiting
+     * before it.
+     * @param vid variableId
+     * @param ts timestamp
+     */
+    public void setVariable(int vid, long ts) {
+        variableId = vid;
+        timestamp = ts;
+    }
+
+    /**
+     * Returns whether the new operation is a read for update.
+     * @return boolean
+     */
+    public boolean isUpdate() {
+        return isUpdate;
+    }
+
+    /**
+     * Sets whether the new operation is a read for update.
+     * @param u isUpdate
+     */
+    public void setUpdate(boolean u) {
+        isUpdate = u;
+    }
+
+    /**
+     * Returns whether only writes and, for a read for update, reads for update are looked for as
+     * conflict operations.
+     * @return boolean
+     */
+    public boolean isWriteOnly() {
+        return isWriteOnly;
+    }
+
+    /**
+     * Sets whether only writes and, for a read for update, reads for update are looked for as
+     * conflict operations.
+     * @param w isWriteOnly
+     */
+    public void setWriteOnly(boolean w) {
+        isWriteOnly = w;
+    }
+
+    /**
+     * Gets partitionId of the partition starting or stopping to wait on a variable.
+     * @return partitionId
+     */
+    public int getPartitionId() {
+        return partitionId;
+    }
+
+    /**
+     * Sets the variable a partition starts or stops having operations waiting on.
+     * @param vid variableId
+     * @param pid partitionId
+     */
+    public void setWaitingPartition(int vid, int pid) {
+        variableId = vid;
+        partitionId = pid;
+    }
+
+    /**
+     * Gets effective priority of the transaction of the new operation.
+     * @return priority
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets effective priority of the transaction of the new operation.
+     * @param p priority
+     */
+    public void setPriority(int p) {
+        priority = p;
+    }
+
+    /**
+     * Gets siteId of a failed site.
+     * @return siteId
+     */
+    public int getSiteId() {
+        return siteId;
+    }
+
+    /**
+     * Sets siteId of a failed site and the transactions that held locks on it, or null if every
+     * transaction that accessed the site aborts.
+     * @param sid siteId
+     * @param holders lockHolders, or null
+     * @param n number of lockHolders
+     */
+    public void setFailedSite(int sid, int[] holders, int n) {
+        siteId = sid;
+        lockHolders = holders;
+        lockHolderCount = n;
+    }
+
+    /**
+     * Returns whether a transaction aborts by the failure of the site.
+     * @param tid transactionId
+     * @return boolean
+     */
+    public boolean isLockHolder(int tid) {
+        if (lockHolders == null) {
+            return true;
+        }
+        for (int i = 0; i < lockHolderCount; i++) {
+            if (lockHolders[i] == tid) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets operation.
+     * @return operation
+     */
+    public Operation getOperation() {
+        return operation;
+    }
+
+    /**
+     * Sets operation, which is the operation to retry in a request and the conflict operation in
+     * a reply.
+     * @param o operation
+     */
+    public void setOperation(Operation o) {
+        operation = o;
+    }
+
+    /**
+     * Gets the transactions a probe has followed.
+     * @return path
+     */
+    public List<Frame> getPath() {
+        return path;
+    }
+
+    /**
+     * Returns whether a transaction is on the path of a probe.
+     * @param tid transactionId
+     * @return boolean
+     */
+    public boolean isOnPath(int tid) {
+        for (Frame f : path) {
+            if (f.getTransactionId() == tid) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the transactionIds a probe has visited.
+     * @return visited
+     */
+    public List<Integer> getVisited() {
+        return visited;
+    }
+
+    /**
+     * Gets result.
+     * @return boolean
+     */
+    public boolean getResult() {
+        return result;
+    }
+
+    /**
+     * Sets result.
+     * @param r result
+     */
+    public void setResult(boolean r) {
+        result = r;
+    }
+
+    /**
+     * Gets count.
+     * @return count
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Sets count.
+     * @param n count
+     */
+    public void setCount(int n) {
+        count = n;
+    }
+
+    /**
+     * Gets the transaction asked for, or null if it does not exist.
+     * @return frame
+     */
+    public Frame getFrame() {
+        return frame;
+    }
+
+    /**
+     * Sets the transaction asked for.
+     * @param f frame
+     */
+    public void setFrame(Frame f) {
+        frame = f;
+    }
+
+    /**
+     * Gets operations.
+     * @return operations
+     */
+    public List<Operation> getOperations() {
+        return operations;
+    }
+
+    /**
+     * Sets operations.
+     * @param os operations
+     */
+    public void setOperations(List<Operation> os) {
+        operations = os;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * This class places variables on sites. Odd variables are not replicated and stay at their home
+ * site, variable i at site i mod n + 1, as in the original layout. Even variables are replicated
+ * on k sites chosen by rendezvous hashing: every site gets a pseudo-random weight for the
+ * variable, and the k sites with the greatest weights host it. With k equal to the number of
+ * sites, even variables are on all sites as before. Since the weight of a site does not depend on
+ * other sites, adding a site only moves the replicas it outweighs, and writes lock and install k
+ * replicas however many sites there are.
+ * @version 12/10/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class PlacementPolicy {
+    private int replicationFactor;
+    private int siteCount;
+
+    public PlacementPolicy(int k, int n) {
+        if (k < 1 || k > n) {
+            throw new IllegalArgumentException(String.format("invalid replication factor %d for %d sites", k, n));
+        }
+        replicationFactor = k;
+        siteCount = n;
+    }
+
+    /**
+     * Gets number of replicas of an even variable.
+     * @return replicationFactor
+     */
+    public int getReplicationFactor() {
+        return replicationFactor;
+    }
+
+    /**
+     * Returns whether a variable has more than one replica.
+     * @param vid variableId
+     * @return boolean
+     */
+    public boolean isReplicated(int vid) {
+        return vid % 2 == 0 && replicationFactor > 1;
+    }
+
+    /**
+     * Returns whether a site hosts a variable. An even variable is hosted by a site if fewer than
+     * k sites outweigh it, with ties broken by siteId.
+     * @param vid variableId
+     * @param sid siteId
+     * @return boolean
+     */
+    public boolean isHosted(int vid, int sid) {
+        if (vid % 2 != 0) {
+            return vid % siteCount + 1 == sid;
+        }
+        long weight = getWeight(vid, sid);
+        int heavierCount = 0;
+        for (int i = 1; i <= siteCount; i++) {
+            long otherWeight = getWeight(vid, i);
+            if (otherWeight > weight || (otherWeight == weight && i < sid)) {
+                heavierCount++;
+            }
+        }
+        return heavierCount < replicationFactor;
+    }
+
+    /**
+     * Gets the rendezvous weight of a site for a variable, by mixing both ids with the finalizer
+     * of SplitMix64.
+     * @param vid variableId
+     * @param sid siteId
+     * @return weight
+     */
+    private static long getWeight(int vid, int sid) {
+        long z = ((long) vid << 32 | sid) + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,573 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class represents a message sent from the transaction manager to a site, together with the
+ * reply of the site.
+ * @version 12/06/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class SiteMessage {
+    public enum MessageType {
+        READ, CAN_READ, CAN_WRITE, WRITE, TRY_WRITE, GET_LOCK_HOLDERS, PREPARE, COMMIT, ABORT, LOCK_FOR_UPDATE,
+        GET_LOCK_COUNT, IS_WRITE_LOCKED, GET_UNREADABLE_VARIABLES, CATCH_UP, FAIL, RECOVER, DUMP, DUMP_DELTA
+    }
+
+    public enum Vote {
+        YES, NO, READ_ONLY
+    }
+
+    private static final int[] NO_IDS = new int[0];
+
+    private MessageType type;
+    private Transaction.TransactionType transactionType;
+    private long timestamp;
+    private Operation operation;
+    private int transactionId;
+    private int variableId;
+    private int versionToCommit;
+    private int sourceSiteId;
+
+    private boolean result;
+    private int value;
+    private ByteBuffer blob;
+    private int version;
+    private long commitTimestamp;
+    private boolean isWriteLocked;
+    private int[] lockHolders;
+    private int lockHolderCount;
+    private int lockCount;
+    private int[] variableIds;
+    private int variableIdCount;
+    private String text;
+    private Vote vote;
+
+    public SiteMessage(MessageType t, Transaction.TransactionType tt, long ts, Operation o) {
+        type = t;
+        transactionType = tt;
+        timestamp = ts;
+        operation = o;
+        transactionId = o.getTransactionId();
+        variableId = o.getVariableId();
+        lockHolders = NO_IDS;
+        variableIds = NO_IDS;
+    }
+
+    public SiteMessage(MessageType t, int tid, int vid, long ts) {
+        type = t;
+        transactionId = tid;
+        variableId = vid;
+        timestamp = ts;
+        lockHolders = NO_IDS;
+        variableIds = NO_IDS;
+    }
+
+    /**
+     * Makes this message another request with an operation and clears its reply, so that a
+     * single object serves every message whose reply is used right away.
+     * @param t messageType
+     * @param tt transactionType
+     * @param ts timestamp
+     * @param o operation
+     * @return this message
+     */
+    public SiteMessage reset(MessageType t, Transaction.TransactionType tt, long ts, Operation o) {
+        type = t;
+        transactionType = tt;
+        timestamp = ts;
+        operation = o;
+        transactionId = o == null ? 0 : o.getTransactionId();
+        variableId = o == null ? 0 : o.getVariableId();
+        versionToCommit = 0;
+        sourceSiteId = 0;
+        result = false;
+        value = 0;
+        blob = null;
+        version = 0;
+        commitTimestamp = 0;
+        isWriteLocked = false;
+        lockHolderCount = 0;
+        lockCount = 0;
+        variableIdCount = 0;
+        text = null;
+        vote = null;
+        return this;
+    }
+
+    /**
+     * Makes this message another request without an operation and clears its reply, so that a
+     * single object serves every message whose reply is used right away.
+     * @param t messageType
+     * @param tid transactionId
+     * @param vid variableId
+     * @param ts timestamp
+     * @return this message
+     */
+    public SiteMessage reset(MessageType t, int tid, int vid, long ts) {
+        reset(t, null, ts, null);
+        transactionId = tid;
+        variableId = vid;
+        return this;
+    }
+
+    /**
+     * Gets message type.
+     * @return type
+     */
+    public MessageType getType() {
+        return type;
+    }
+
+    /**
+     * Gets type of the transaction sending this message.
+     * @return transactionType
+     */
+    public Transaction.TransactionType getTransactionType() {
+        return transactionType;
+    }
+
+    /**
+     * Gets timestamp.
+     * @return timestamp
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets operation.
+     * @return operation
+     */
+    public Operation getOperation() {
+        return operation;
+    }
+
+    /**
+     * Gets transactionId.
+     * @return transactionId
+     */
+    public int getTransactionId() {
+        return transactionId;
+    }
+
+    /**
+     * Gets variableId.
+     * @return variableId
+     */
+    public int getVariableId() {
+        return variableId;
+    }
+
+    /**
+     * Gets version number to commit for a write.
+     * @return versionToCommit
+     */
+    public int getVersionToCommit() {
+        return versionToCommit;
+    }
+
+    /**
+     * Sets version number to commit for a write.
+     * @param ver versionToCommit
+     */
+    public void setVersionToCommit(int ver) {
+        versionToCommit = ver;
+    }
+
+    /**
+     * Gets siteId of the site a variable is caught up from.
+     * @return sourceSiteId
+     */
+    public int getSourceSiteId() {
+        return sourceSiteId;
+    }
+
+    /**
+     * Sets siteId of the site a variable is caught up from.
+     * @param sid sourceSiteId
+     */
+    public void setSourceSiteId(int sid) {
+        sourceSiteId = sid;
+    }
+
+    /**
+     * Gets whether the site accepts the request.
+     * @return result
+     */
+    public boolean getResult() {
+        return result;
+    }
+
+    /**
+     * Sets whether the site accepts the request.
+     * @param r result
+     */
+    public void setResult(boolean r) {
+        result = r;
+    }
+
+    /**
+     * Gets value read.
+     * @return value
+     */
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * Sets value read.
+     * @param v value
+     */
+    public void setValue(int v) {
+        value = v;
+    }
+
+    /**
+     * Gets blob value read.
+     * @return blob, or null if the value is an int
+     */
+    public ByteBuffer getBlob() {
+        return blob;
+    }
+
+    /**
+     * Sets blob value read. This is a read-only view of the slab of the site.
+     * @param b blob
+     */
+    public void setBlob(ByteBuffer b) {
+        blob = b;
+    }
+
+    /**
+     * Gets version number of the replica.
+     * @return version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets timestamp of the last commit of the replica before the message timestamp.
+     * @return commitTimestamp
+     */
+    public long getCommitTimestamp() {
+        return commitTimestamp;
+    }
+
+    /**
+     * Returns whether the replica is write-locked by the transaction sending this message.
+     * @return boolean
+     */
+    public boolean isWriteLocked() {
+        return isWriteLocked;
+    }
+
+    /**
+     * Sets the state of the replica.
+     * @param ver version
+     * @param cts commitTimestamp
+     * @param w isWriteLocked
+     */
+    public void setReplicaState(int ver, long cts, boolean w) {
+        version = ver;
+        commitTimestamp = cts;
+        isWriteLocked = w;
+    }
+
+    /**
+     * Gets vote of the site in two-phase commit.
+     * @return vote
+     */
+    public Vote getVote() {
+        return vote;
+    }
+
+    /**
+     * Sets vote of the site in two-phase commit.
+     * @param v vote
+     */
+    public void setVote(Vote v) {
+        vote = v;
+    }
+
+    /**
+     * Gets the buffer of transactionIds of lock holders, of which the first getLockHolderCount()
+     * are filled in.
+     * @return lockHolders
+     */
+    public int[] getLockHolders() {
+        return lockHolders;
+    }
+
+    /**
+     * Gets number of lock holders.
+     * @return lockHolderCount
+     */
+    public int getLockHolderCount() {
+        return lockHolderCount;
+    }
+
+    /**
+     * Gets the buffer of transactionIds of lock holders with at least some capacity, so that the
+     * site fills it in.
+     * @param capacity number of lock holders to fit
+     * @return lockHolders
+     */
+    public int[] getLockHolderBuffer(int capacity) {
+        if (lockHolders.length < capacity) {
+            lockHolders = new int[capacity];
+        }
+        return lockHolders;
+    }
+
+    /**
+     * Sets number of lock holders filled in.
+     * @param n lockHolderCount
+     */
+    public void setLockHolderCount(int n) {
+        lockHolderCount = n;
+    }
+
+    /**
+     * Gets number of locks held on the site.
+     * @return lockCount
+     */
+    public int getLockCount() {
+        return lockCount;
+    }
+
+    /**
+     * Sets number of locks held on the site.
+     * @param n lockCount
+     */
+    public void setLockCount(int n) {
+        lockCount = n;
+    }
+
+    /**
+     * Gets the buffer of variableIds, of which the first getVariableIdCount() are filled in.
+     * @return variableIds
+     */
+    public int[] getVariableIds() {
+        return variableIds;
+    }
+
+    /**
+     * Gets number of variableIds filled in.
+     * @return variableIdCount
+     */
+    public int getVariableIdCount() {
+        return variableIdCount;
+    }
+
+    /**
+     * Gets the buffer of variableIds with at least some capacity, so that the site fills it in.
+     * @param capacity number of variableIds to fit
+     * @return variableIds
+     */
+    public int[] getVariableIdBuffer(int capacity) {
+        if (variableIds.length < capacity) {
+            variableIds = new int[capacity];
+        }
+        return variableIds;
+    }
+
+    /**
+     * Sets number of variableIds filled in.
+     * @param n variableIdCount
+     */
+    public void setVariableIdCount(int n) {
+        variableIdCount = n;
+    }
+
+    /**
+     * Gets text given by the site, such as a dump.
+     * @return text, or null if there is none
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Sets text given by the site.
+     * @param t text
+     */
+    public void setText(String t) {
+        text = t;
+    }
+
+    /**
+     * Writes the request.
+     * @param out output stream
+     * @throws IOException if fails to write
+     */
+    public void writeRequest(DataOutputStream out) throws IOException {
+        out.writeByte(type.ordinal());
+        out.writeByte(transactionType == null ? -1 : transactionType.ordinal());
+        out.writeLong(timestamp);
+        out.writeInt(transactionId);
+        out.writeInt(variableId);
+        out.writeInt(versionToCommit);
+        out.writeInt(sourceSiteId);
+        out.writeBoolean(operation != null);
+        if (operation != null) {
+            out.writeLong(operation.getTimestamp());
+            out.writeByte(operation.getType().ordinal());
+            out.writeInt(operation.getValue());
+            writeBlob(out, operation.getBlob());
+        }
+    }
+
+    /**
+     * Writes a blob as its length followed by its bytes, or -1 if there is none.
+     * @param out output stream
+     * @param b blob
+     * @throws IOException if fails to write
+     */
+    private static void writeBlob(DataOutputStream out, ByteBuffer b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+            return;
+        }
+        ByteBuffer source = b.duplicate();
+        out.writeInt(source.remaining());
+        while (source.hasRemaining()) {
+            out.writeByte(source.get());
+        }
+    }
+
+    /**
+     * Reads a blob written by writeBlob.
+     * @param in input stream
+     * @return blob, or null
+     * @throws IOException if fails to read
+     */
+    private static ByteBuffer readBlob(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads a request.
+     * @param in input stream
+     * @return message
+     * @throws IOException if fails to read
+     */
+    public static SiteMessage readRequest(DataInputStream in) throws IOException {
+        MessageType t = MessageType.values()[in.readByte()];
+        int transactionTypeOrdinal = in.readByte();
+        long ts = in.readLong();
+        int tid = in.readInt();
+        int vid = in.readInt();
+        int ver = in.readInt();
+        int sourceSid = in.readInt();
+        SiteMessage message;
+        if (in.readBoolean()) {
+            long operationTimestamp = in.readLong();
+            Operation.OperationType operationType = Operation.OperationType.values()[in.readByte()];
+            int v = in.readInt();
+            ByteBuffer b = readBlob(in);
+            message = new SiteMessage(t, Transaction.TransactionType.values()[transactionTypeOrdinal], ts,
+                    b == null ? new Operation(operationTimestamp, tid, vid, operationType, v)
+                            : new Operation(operationTimestamp, tid, vid, b));
+        } else {
+            message = new SiteMessage(t, tid, vid, ts);
+        }
+        message.setVersionToCommit(ver);
+        message.setSourceSiteId(sourceSid);
+        return message;
+    }
+
+    /**
+     * Writes the reply.
+     * @param out output stream
+     * @throws IOException if fails to write
+     */
+    public void writeReply(DataOutputStream out) throws IOException {
+        out.writeBoolean(result);
+        out.writeInt(value);
+        writeBlob(out, blob);
+        out.writeInt(version);
+        out.writeLong(commitTimestamp);
+        out.writeBoolean(isWriteLocked);
+        out.writeByte(vote == null ? -1 : vote.ordinal());
+        out.writeInt(lockHolderCount);
+        for (int i = 0; i < lockHolderCount; i++) {
+            out.writeInt(lockHolders[i]);
+        }
+        out.writeInt(lockCount);
+        out.writeInt(variableIdCount);
+        for (int i = 0; i < variableIdCount; i++) {
+            out.writeInt(variableIds[i]);
+        }
+        writeText(out, text);
+    }
+
+    /**
+     * Writes a text as its length in bytes followed by its UTF-8 bytes, or -1 if there is none.
+     * @param out output stream
+     * @param t text
+     * @throws IOException if fails to write
+     */
+    private static void writeText(DataOutputStream out, String t) throws IOException {
+        if (t == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = t.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a text written by writeText.
+     * @param in input stream
+     * @return text, or null
+     * @throws IOException if fails to read
+     */
+    private static String readText(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the reply into this message.
+     * @param in input stream
+     * @throws IOException if fails to read
+     */
+    public void readReply(DataInputStream in) throws IOException {
+        result = in.readBoolean();
+        value = in.readInt();
+        blob = readBlob(in);
+        version = in.readInt();
+        commitTimestamp = in.readLong();
+        isWriteLocked = in.readBoolean();
+        int voteOrdinal = in.readByte();
+        vote = voteOrdinal < 0 ? null : Vote.values()[voteOrdinal];
+        lockHolderCount = in.readInt();
+        getLockHolderBuffer(lockHolderCount);
+        for (int i = 0; i < lockHolderCount; i++) {
+            lockHolders[i] = in.readInt();
+        }
+        lockCount = in.readInt();
+        variableIdCount = in.readInt();
+        getVariableIdBuffer(variableIdCount);
+        for (int i = 0; i < variableIdCount; i++) {
+            variableIds[i] = in.readInt();
+        }
+        text = readText(in);
+    }
+}
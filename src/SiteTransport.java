@@ -0,0 +1,70 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This interface delivers messages from the transaction manager to sites.
+ * @version 12/06/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public interface SiteTransport {
+    /**
+     * Attaches the sites that messages are delivered to.
+     * @param sites map of siteId to dataManager
+     */
+    void connect(Map<Integer, DataManager> sites);
+
+    /**
+     * Delivers batches of messages and waits until all of them are replied. Batches to different
+     * sites are in flight at the same time, and messages of a batch are handled in order.
+     * @param batches map of siteId to messages
+     */
+    void send(Map<Integer, List<SiteMessage>> batches);
+
+    /**
+     * Delivers a single message and waits until it is replied.
+     * @param sid siteId
+     * @param message message
+     */
+    default void send(int sid, SiteMessage message) {
+        send(Map.of(sid, List.of(message)));
+    }
+
+    /**
+     * Delivers one message to each of some sites and waits until all of them are replied. The
+     * messages are in flight at the same time.
+     * @param siteIds siteIds
+     * @param messages messages in the order of siteIds
+     * @param count number of sites
+     */
+    default void send(int[] siteIds, SiteMessage[] messages, int count) {
+        Map<Integer, List<SiteMessage>> batches = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            batches.put(siteIds[i], List.of(messages[i]));
+        }
+        send(batches);
+    }
+
+    /**
+     * Gets number of round trips made.
+     * @return roundTripCount
+     */
+    long getRoundTripCount();
+
+    /**
+     * Gets number of messages delivered.
+     * @return messageCount
+     */
+    long getMessageCount();
+
+    /**
+     * Gets time spent waiting for replies in nanoseconds.
+     * @return waitNanos
+     */
+    long getWaitNanos();
+
+    /**
+     * Releases resources of this transport.
+     */
+    void close();
+}
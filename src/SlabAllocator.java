@@ -0,0 +1,182 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class stores variable-length values of a site in slabs of direct memory. A slab is carved
+ * into chunks of one size class, from 32 bytes up to 16 kilobytes, and a value larger than that
+ * gets a slab of its own. Values are referred to by int handles kept in primitive arrays, and a
+ * handle is reference counted so that versions with the same payload share it. Handles of freed
+ * values are reused, along with the slot of the slab of a value larger than a chunk.
+ * @version 12/07/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class SlabAllocator {
+    private static final int SLAB_SIZE = 1 << 16;
+    private static final int MIN_CHUNK_SHIFT = 5;
+    private static final int SIZE_CLASS_COUNT = 10;
+
+    private List<ByteBuffer> slabs;
+    private int[] carvingSlabs;         // <sizeClass, slab being carved>
+    private int[] carvingOffsets;       // <sizeClass, offset of next chunk in slab>
+    private int[][] freeChunks;         // <sizeClass, stack of handles to free chunks>, freed large values last
+    private int[] freeChunkCounts;      // <sizeClass, number of free chunks>
+    private int[] handleSlabs;
+    private int[] handleOffsets;
+    private int[] handleLengths;
+    private int[] handleRefCounts;
+    private int handleCount;
+    private long allocatedBytes;
+
+    public SlabAllocator() {
+        slabs = new ArrayList<>();
+        carvingSlabs = new int[SIZE_CLASS_COUNT];
+        Arrays.fill(carvingSlabs, -1);
+        carvingOffsets = new int[SIZE_CLASS_COUNT];
+        freeChunks = new int[SIZE_CLASS_COUNT + 1][16];
+        freeChunkCounts = new int[SIZE_CLASS_COUNT + 1];
+        handleSlabs = new int[16];
+        handleOffsets = new int[16];
+        handleLengths = new int[16];
+        handleRefCounts = new int[16];
+        handleCount = 0;
+        allocatedBytes = 0;
+    }
+
+    /**
+     * Gets the size class of a length, or SIZE_CLASS_COUNT if it needs a slab of its own.
+     * @param length length in bytes
+     * @return sizeClass
+     */
+    private static int getSizeClass(int length) {
+        int sizeClass = 0;
+        while (sizeClass < SIZE_CLASS_COUNT && (1 << (MIN_CHUNK_SHIFT + sizeClass)) < length) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * Copies a value into a chunk.
+     * @param payload value, read from its position to its limit
+     * @return handle with one reference
+     */
+    public int allocate(ByteBuffer payload) {
+        int length = payload.remaining();
+        int sizeClass = getSizeClass(length);
+        int handle;
+        if (freeChunkCounts[sizeClass] > 0) {
+            handle = freeChunks[sizeClass][--freeChunkCounts[sizeClass]];
+            if (sizeClass == SIZE_CLASS_COUNT) {
+                slabs.set(handleSlabs[handle], ByteBuffer.allocateDirect(length));
+            }
+        } else {
+            handle = newHandle();
+            if (sizeClass == SIZE_CLASS_COUNT) {
+                handleSlabs[handle] = slabs.size();
+                handleOffsets[handle] = 0;
+                slabs.add(ByteBuffer.allocateDirect(length));
+            } else {
+                int chunkSize = 1 << (MIN_CHUNK_SHIFT + sizeClass);
+                if (carvingSlabs[sizeClass] < 0 || carvingOffsets[sizeClass] + chunkSize > SLAB_SIZE) {
+                    carvingSlabs[sizeClass] = slabs.size();
+                    carvingOffsets[sizeClass] = 0;
+                    slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+                }
+                handleSlabs[handle] = carvingSlabs[sizeClass];
+                handleOffsets[handle] = carvingOffsets[sizeClass];
+                carvingOffsets[sizeClass] += chunkSize;
+            }
+        }
+        ByteBuffer slab = slabs.get(handleSlabs[handle]);
+        for (int i = 0; i < length; i++) {
+            slab.put(handleOffsets[handle] + i, payload.get(payload.position() + i));
+        }
+        handleLengths[handle] = length;
+        handleRefCounts[handle] = 1;
+        allocatedBytes += length;
+        return handle;
+    }
+
+    /**
+     * Gets an unused handle, growing the handle arrays if needed.
+     * @return handle
+     */
+    private int newHandle() {
+        if (handleCount == handleSlabs.length) {
+            handleSlabs = Arrays.copyOf(handleSlabs, 2 * handleCount);
+            handleOffsets = Arrays.copyOf(handleOffsets, 2 * handleCount);
+            handleLengths = Arrays.copyOf(handleLengths, 2 * handleCount);
+            handleRefCounts = Arrays.copyOf(handleRefCounts, 2 * handleCount);
+        }
+        return handleCount++;
+    }
+
+    /**
+     * Gets a read-only view of a value without copying it.
+     * @param handle handle
+     * @return view
+     */
+    public ByteBuffer view(int handle) {
+        ByteBuffer view = slabs.get(handleSlabs[handle]).asReadOnlyBuffer();
+        view.position(handleOffsets[handle]).limit(handleOffsets[handle] + handleLengths[handle]);
+        return view.slice();
+    }
+
+    /**
+     * Returns whether a value equals a payload.
+     * @param handle handle
+     * @param payload payload, read from its position to its limit
+     * @return boolean
+     */
+    public boolean contentEquals(int handle, ByteBuffer payload) {
+        return view(handle).equals(payload);
+    }
+
+    /**
+     * Adds a reference to a value.
+     * @param handle handle
+     */
+    public void retain(int handle) {
+        handleRefCounts[handle]++;
+    }
+
+    /**
+     * Removes a reference to a value, and frees its chunk if no reference is left. The slab of a
+     * value larger than a chunk is dropped, and its handle is kept for the next large value.
+     * @param handle handle
+     */
+    public void release(int handle) {
+        if (--handleRefCounts[handle] > 0) {
+            return;
+        }
+        allocatedBytes -= handleLengths[handle];
+        int sizeClass = getSizeClass(handleLengths[handle]);
+        if (sizeClass == SIZE_CLASS_COUNT) {
+            slabs.set(handleSlabs[handle], null);
+        }
+        if (freeChunkCounts[sizeClass] == freeChunks[sizeClass].length) {
+            freeChunks[sizeClass] = Arrays.copyOf(freeChunks[sizeClass], 2 * freeChunkCounts[sizeClass]);
+        }
+        freeChunks[sizeClass][freeChunkCounts[sizeClass]++] = handle;
+    }
+
+    /**
+     * Copies a value from the allocator of another site.
+     * @param source allocator
+     * @param handle handle in source
+     * @return handle in this allocator
+     */
+    public int copyFrom(SlabAllocator source, int handle) {
+        return allocate(source.view(handle));
+    }
+
+    /**
+     * Gets number of bytes of values in use.
+     * @return allocatedBytes
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class delivers messages to sites over local sockets. Each site is served by a thread of
+ * its own behind a loopback server socket. With batching, all batches are written before any
+ * reply is read, so sites handle them at the same time. Without batching, every message waits
+ * for its reply before the next one is written.
+ * @version 12/06/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class SocketTransport implements SiteTransport {
+    private boolean isBatching;
+    private ServerSocket serverSocket;
+    private Map<Integer, Socket> sockets;               // <siteId, socket>
+    private Map<Integer, DataOutputStream> outputs;     // <siteId, output>
+    private Map<Integer, DataInputStream> inputs;       // <siteId, input>
+    private long roundTripCount;
+    private long messageCount;
+    private long waitNanos;
+
+    public SocketTransport(boolean b) {
+        isBatching = b;
+        sockets = new HashMap<>();
+        outputs = new HashMap<>();
+        inputs = new HashMap<>();
+        roundTripCount = 0;
+        messageCount = 0;
+        waitNanos = 0;
+    }
+
+    @Override
+    public void connect(Map<Integer, DataManager> sites) {
+        try {
+            serverSocket = new ServerSocket(0, sites.size(), InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(() -> accept(sites), "site-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            for (int sid : sites.keySet()) {
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+                socket.setTcpNoDelay(true);
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                output.writeInt(sid);
+                output.flush();
+                sockets.put(sid, socket);
+                outputs.put(sid, output);
+                inputs.put(sid, new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Accepts connections and starts a thread serving each of them.
+     * @param sites map of siteId to dataManager
+     */
+    private void accept(Map<Integer, DataManager> sites) {
+        try {
+            while (!serverSocket.isClosed()) {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread server = new Thread(() -> serve(socket, sites), "site-server");
+                server.setDaemon(true);
+                server.start();
+            }
+        } catch (IOException e) {
+            // the server socket is closed
+        }
+    }
+
+    /**
+     * Handles batches of messages from a connection to a site.
+     * @param socket connection
+     * @param sites map of siteId to dataManager
+     */
+    private void serve(Socket socket, Map<Integer, DataManager> sites) {
+        try (Socket s = socket) {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            DataManager site = sites.get(input.readInt());
+            while (true) {
+                int batchSize = input.readInt();
+                List<SiteMessage> batch = new ArrayList<>();
+                for (int i = 0; i < batchSize; i++) {
+                    batch.add(SiteMessage.readRequest(input));
+                }
+                synchronized (site) {
+                    for (SiteMessage message : batch) {
+                        site.handle(message);
+                    }
+                }
+                for (SiteMessage message : batch) {
+                    message.writeReply(output);
+                }
+                output.flush();
+            }
+        } catch (IOException e) {
+            // the connection is closed
+        }
+    }
+
+    @Override
+    public void send(Map<Integer, List<SiteMessage>> batches) {
+        long start = System.nanoTime();
+        try {
+            if (isBatching) {
+                for (Map.Entry<Integer, List<SiteMessage>> batch : batches.entrySet()) {
+                    writeBatch(batch.getKey(), batch.getValue());
+                }
+                for (Map.Entry<Integer, List<SiteMessage>> batch : batches.entrySet()) {
+                    readReplies(batch.getKey(), batch.getValue());
+                    messageCount += batch.getValue().size();
+                }
+                roundTripCount += batches.isEmpty() ? 0 : 1;
+            } else {
+                for (Map.Entry<Integer, List<SiteMessage>> batch : batches.entrySet()) {
+                    for (SiteMessage message : batch.getValue()) {
+                        writeBatch(batch.getKey(), List.of(message));
+                        readReplies(batch.getKey(), List.of(message));
+                        messageCount++;
+                        roundTripCount++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        waitNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Writes a batch of messages to a site.
+     * @param sid siteId
+     * @param batch messages
+     * @throws IOException if fails to write
+     */
+    private void writeBatch(int sid, List<SiteMessage> batch) throws IOException {
+        DataOutputStream output = outputs.get(sid);
+        output.writeInt(batch.size());
+        for (SiteMessage message : batch) {
+            message.writeRequest(output);
+        }
+        output.flush();
+    }
+
+    /**
+     * Reads replies of a batch of messages from a site.
+     * @param sid siteId
+     * @param batch messages
+     * @throws IOException if fails to read
+     */
+    private void readReplies(int sid, List<SiteMessage> batch) throws IOException {
+        DataInputStream input = inputs.get(sid);
+        for (SiteMessage message : batch) {
+            message.readReply(input);
+        }
+    }
+
+    @Override
+    public long getRoundTripCount() {
+        return roundTripCount;
+    }
+
+    @Override
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    @Override
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    @Override
+    public void close() {
+        try {
+            for (Socket socket : sockets.values()) {
+                socket.close();
+            }
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class hands out 64-bit timestamps in blocks. A driver takes timestamps from a clock of
+ * its own, which goes back to the oracle for a new block only once its block is used up, so that
+ * concurrent drivers do not contend on a shared counter for every timestamp. Timestamps are
+ * unique across clocks, and increase within a clock. Timestamps start at 1, so that a trace
+ * replayed by a single clock is timestamped by its line numbers as before.
+ * @version 12/08/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class TimestampOracle {
+    private static final int BLOCK_SIZE = 1024;
+
+    private AtomicLong nextBlockStart;
+
+    public TimestampOracle() {
+        nextBlockStart = new AtomicLong(1);
+    }
+
+    /**
+     * This class hands out timestamps of the blocks it takes from the oracle. A clock is used by
+     * one thread at a time.
+     */
+    public class Clock {
+        private long next;
+        private long blockEnd;
+
+        private Clock() {
+            next = 0;
+            blockEnd = 0;
+        }
+
+        /**
+         * Gets the next timestamp, taking a new block from the oracle if this block is used up.
+         * @return timestamp
+         */
+        public long next() {
+            if (next == blockEnd) {
+                next = nextBlockStart.getAndAdd(BLOCK_SIZE);
+                blockEnd = next + BLOCK_SIZE;
+            }
+            return next++;
+        }
+    }
+
+    /**
+     * Creates a clock taking blocks from this oracle.
+     * @return clock
+     */
+    public Clock newClock() {
+        return new Clock();
+    }
+}
@@ -1,5 +1,6 @@
-import java.util.HashSet;
-import java.util.Set;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * This class represents a transaction.
@@ -12,19 +13,35 @@ public class Transaction {
     }
 
     private int id;
-    private int timestamp;
+    private long timestamp;
     private TransactionType type;
+    private int priority;
+    private int executedOperationCount;
+    private int waitTicks;
     private boolean isBlocked;
     private boolean isAborted;
-    private Set<Integer> accessedSites;
+    private boolean isCommitting;
+    private BitSet accessedSites;
+    private BitSet lockLossSites;                       // sites that failed while holding locks of it
+    private BitSet updateVariableIds;                   // variables read for update
+    private Map<Integer, Operation> writeBuffer;        // <variableId, buffered write>
+    private Map<Integer, Integer> readSequences;        // <variableId, commit sequence at first read>
 
-    public Transaction(int tid, int ts, TransactionType t) {
+    public Transaction(int tid, long ts, TransactionType t) {
         id = tid;
         timestamp = ts;
         type = t;
+        priority = 0;
+        executedOperationCount = 0;
+        waitTicks = 0;
         isBlocked = false;
         isAborted = false;
-        accessedSites = new HashSet<>();
+        isCommitting = false;
+        accessedSites = new BitSet(TransactionManager.SITE_COUNT + 1);
+        lockLossSites = new BitSet(TransactionManager.SITE_COUNT + 1);
+        updateVariableIds = new BitSet(DataManager.VARIABLE_COUNT + 1);
+        writeBuffer = new LinkedHashMap<>();
+        readSequences = new LinkedHashMap<>();
     }
 
     /**
@@ -39,7 +56,7 @@ public class Transaction {
      * Get timestamp of start.
      * @return timestamp
      */
-    public int getTimestamp() {
+    public long getTimestamp() {
         return timestamp;
     }
 
@@ -51,6 +68,47 @@ public class Transaction {
         return type;
     }
 
+    /**
+     * Gets priority, where a greater one is scheduled first.
+     * @return priority
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets priority.
+     * @param p priority
+     */
+    public void setPriority(int p) {
+        priority = p;
+    }
+
+    /**
+     * Gets the number of operations this transaction has executed.
+     * @return executedOperationCount
+     */
+    public int getExecutedOperationCount() {
+        return executedOperationCount;
+    }
+
+    /**
+     * Gets the number of ticks this transaction has been blocked for.
+     * @return waitTicks
+     */
+    public int getWaitTicks() {
+        return waitTicks;
+    }
+
+    /**
+     * Ages this transaction by a tick if it is blocked.
+     */
+    public void age() {
+        if (isBlocked) {
+            waitTicks++;
+        }
+    }
+
     /**
      * Returns whether this transaction is blocked or not.
      * @return boolean
@@ -67,14 +125,17 @@ public class Transaction {
     }
 
     /**
-     * Sets the transaction to be unblocked.
+     * Sets the transaction to be unblocked, as it has executed an operation.
      */
     public void unblock() {
         isBlocked = false;
+        waitTicks = 0;
+        executedOperationCount++;
     }
 
     /**
-     * Returns whether this transaction is aborted by accessing a down site or not.
+     * Returns whether this transaction is aborted, by accessing a down site or by the transaction
+     * manager.
      * @return boolean
      */
     public boolean isAborted() {
@@ -89,10 +150,26 @@ public class Transaction {
     }
 
     /**
-     * Gets the sites that this transaction accessed.
+     * Returns whether this transaction has decided to commit and waits for the decision to be
+     * forced to the coordinator log.
+     * @return boolean
+     */
+    public boolean isCommitting() {
+        return isCommitting;
+    }
+
+    /**
+     * Sets this transaction to be committing.
+     */
+    public void setCommitting() {
+        isCommitting = true;
+    }
+
+    /**
+     * Gets the sites that this transaction accessed, as a set of siteIds.
      * @return accessedSites.
      */
-    public Set<Integer> getAccessedSites() {
+    public BitSet getAccessedSites() {
         return accessedSites;
     }
 
@@ -101,7 +178,7 @@ public class Transaction {
      * @param sid siteId
      */
     public void addAccessedSite(int sid) {
-        accessedSites.add(sid);
+        accessedSites.set(sid);
     }
 
     /**
@@ -110,6 +187,75 @@ public class Transaction {
      * @return boolean
      */
     public boolean hasAccessedSite(int sid) {
-        return accessedSites.contains(sid);
+        return accessedSites.get(sid);
+    }
+
+    /**
+     * Gets the sites that failed while holding locks of this transaction, as a set of siteIds.
+     * @return lockLossSites
+     */
+    public BitSet getLockLossSites() {
+        return lockLossSites;
+    }
+
+    /**
+     * Adds a site that failed while holding locks of this transaction.
+     * @param sid siteId
+     */
+    public void addLockLossSite(int sid) {
+        lockLossSites.set(sid);
+    }
+
+    /**
+     * Gets the writes buffered by this transaction in optimistic mode, in order of the first
+     * write to each variable.
+     * @return writeBuffer
+     */
+    public Map<Integer, Operation> getWriteBuffer() {
+        return writeBuffer;
+    }
+
+    /**
+     * Buffers a write, replacing an earlier buffered write to the same variable.
+     * @param o operation
+     */
+    public void bufferWrite(Operation o) {
+        writeBuffer.put(o.getVariableId(), o);
+    }
+
+    /**
+     * Gets the variables this transaction read in optimistic mode, with the commit sequence
+     * when each was first read.
+     * @return readSequences
+     */
+    public Map<Integer, Integer> getReadSequences() {
+        return readSequences;
+    }
+
+    /**
+     * Records a read of a variable, unless it was read before.
+     * @param vid variableId
+     * @param sequence commit sequence
+     */
+    public void addRead(int vid, int sequence) {
+        readSequences.putIfAbsent(vid, sequence);
+    }
+
+    /**
+     * Records that this transaction holds update locks on a variable after reading it for
+     * update.
+     * @param vid variableId
+     */
+    public void addReadForUpdate(int vid) {
+        updateVariableIds.set(vid);
+    }
+
+    /**
+     * Returns whether this transaction read a variable for update.
+     * @param vid variableId
+     * @return boolean
+     */
+    public boolean hasReadForUpdate(int vid) {
+        return updateVariableIds.get(vid);
     }
 }
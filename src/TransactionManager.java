@@ -1,191 +1,1787 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.function.IntFunction;
 
 /**
  * This class handles all transactions including read or write on variables and events of different
- * sites. It is able to detect deadlocks.
+ * sites. It is able to detect deadlocks. Transactions can be partitioned among several transaction
+ * managers sharing the sites, each owning the transactions whose id modulo the number of
+ * partitions is its partitionId. Partitions only exchange messages about their transactions, and
+ * deadlocks across partitions are found by passing probes along waits-for edges to the partitions
+ * owning the transactions. Each variable is owned the same way by its variableId, and its owner
+ * knows which partitions have operations waiting on it, so that looking for a conflict operation
+ * waiting on a variable takes one message to the owner instead of one to every partition.
  * @version 12/04/2019
  * @author Xinyi Liu, Ming Xu
  */
 public class TransactionManager {
+    public enum ReplicationMode {
+        AVAILABLE_COPIES, QUORUM
+    }
+
+    public enum ReadPolicy {
+        LOWEST_SITE, ROUND_ROBIN, LEAST_LOADED, STICKY
+    }
+
+    public enum Scheduler {
+        FIFO, PRIORITY
+    }
+
     public static final int SITE_COUNT = 10;
+    private static final int EXPORT_CHUNK_SIZE = 1 << 16;
 
     private Map<Integer, DataManager> sites;            // <siteId, dataManager>
-    private Map<Integer, Transaction> transactions;     // <transactionId, transaction>
+    private BitSet activeSiteIds;                       // siteIds of sites that are up
+    private BitSet[] replicaSiteIds;                    // <variableId, siteIds hosting it>
+    private SiteTransport transport;
+    private PrintStream output;
+    private IntMap<PrintStream> transactionOutputs;     // <transactionId, output>
+    private CoordinatorLog coordinatorLog;
+    private Map<Integer, Map<Integer, SiteMessage>> pendingCommits; // <transactionId, <siteId, commitMessage>>
+    private IntMap<Transaction> transactions;           // <transactionId, transaction>
     private List<Operation> waitingOperations;
+    private int[] waitingCounts;                        // <variableId, waiting operations of this partition on it>, 0 for no such variable
+    private BitSet[] waitingPartitionIds;               // <variableId, partitions with operations waiting on it>, kept by the owner of the variable
+    private Operation flyweightOperation;
+    private SiteMessage flyweightMessage;
+    private int[] flyweightSiteIds;
+    private SiteMessage[] flyweightMessages;
     private Map<Integer, Set<Integer>> waitsForGraph;   // <transactionId, Set<transactionId>>
+    private ReplicationMode replicationMode;
+    private int readQuorumSize;
+    private int writeQuorumSize;
+    private ReadPolicy readPolicy;
+    private int nextReadSiteId;
+    private int[] readOrder;
+    private int[] readOrderKeys;
+    private List<Integer> availableSiteIds;
+    private int readSiteId;
+    private int catchUpRate;
+    private Scheduler scheduler;
+    private int agingInterval;
+    private boolean isOptimistic;
+    private boolean isDeltaDump;
+    private AdmissionController admissionController;
+    private EngineStats stats;
+    private int[] lastCommitSequences;                  // <variableId, commit sequence of last decided commit>, last handed out at 0
+    private int[] appliedCommitSequences;               // <variableId, commit sequence of last commit at sites>
+    private int partitionId;
+    private List<TransactionManager> partitions;
+    private TimestampOracle timestampOracle;
+    private long probeCount;
+
+    public TransactionManager() {
+        this(createSites(), 0);
+        partitions.add(this);
+    }
+
+    private TransactionManager(Map<Integer, DataManager> s, int pid) {
+        sites = s;
+        activeSiteIds = new BitSet(SITE_COUNT + 1);
+        activeSiteIds.set(1, SITE_COUNT + 1);
+        replicaSiteIds = getReplicaSiteIds(new PlacementPolicy(SITE_COUNT, SITE_COUNT));
+        partitionId = pid;
+        partitions = new ArrayList<>();
+        timestampOracle = new TimestampOracle();
+        probeCount = 0;
+        transport = new LoopbackTransport(0, true);
+        transport.connect(sites);
+        output = System.out;
+        transactionOutputs = new IntMap<>();
+        coordinatorLog = new CoordinatorLog(null, 1);
+        pendingCommits = new LinkedHashMap<>();
+        transactions = new IntMap<>();
+        waitingOperations = new ArrayList<>();
+        waitingCounts = new int[DataManager.VARIABLE_COUNT + 1];
+        waitingPartitionIds = new BitSet[DataManager.VARIABLE_COUNT + 1];
+        for (int i = 0; i <= DataManager.VARIABLE_COUNT; i++) {
+            waitingPartitionIds[i] = new BitSet();
+        }
+        flyweightOperation = new Operation(0, 0, 0, Operation.OperationType.READ, 0);
+        flyweightMessage = new SiteMessage(SiteMessage.MessageType.READ, 0, 0, 0);
+        flyweightSiteIds = new int[SITE_COUNT];
+        flyweightMessages = new SiteMessage[SITE_COUNT];
+        for (int i = 0; i < SITE_COUNT; i++) {
+            flyweightMessages[i] = new SiteMessage(SiteMessage.MessageType.READ, 0, 0, 0);
+        }
+        waitsForGraph = new HashMap<>();
+        replicationMode = ReplicationMode.AVAILABLE_COPIES;
+        readPolicy = ReadPolicy.LOWEST_SITE;
+        nextReadSiteId = 1;
+        readOrder = new int[SITE_COUNT];
+        readOrderKeys = new int[SITE_COUNT + 1];
+        availableSiteIds = new ArrayList<>(SITE_COUNT);
+        readSiteId = 0;
+        catchUpRate = 0;
+        scheduler = Scheduler.FIFO;
+        agingInterval = 10;
+        isOptimistic = false;
+        isDeltaDump = false;
+        admissionController = null;
+        stats = null;
+        lastCommitSequences = new int[DataManager.VARIABLE_COUNT + 1];
+        appliedCommitSequences = new int[DataManager.VARIABLE_COUNT + 1];
+    }
+
+    /**
+     * Creates transaction managers sharing the same sites, the same view of which sites are up,
+     * the same commit sequences and the same timestamp oracle.
+     * @param n number of partitions
+     * @return transactionManagers by partitionId
+     */
+    public static List<TransactionManager> createPartitions(int n) {
+        Map<Integer, DataManager> sites = createSites();
+        BitSet activeSiteIds = new BitSet(SITE_COUNT + 1);
+        activeSiteIds.set(1, SITE_COUNT + 1);
+        TimestampOracle timestampOracle = new TimestampOracle();
+        List<TransactionManager> partitions = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            TransactionManager transactionManager = new TransactionManager(sites, i);
+            transactionManager.partitions = partitions;
+            transactionManager.activeSiteIds = activeSiteIds;
+            if (i > 0) {
+                transactionManager.lastCommitSequences = partitions.get(0).lastCommitSequences;
+                transactionManager.appliedCommitSequences = partitions.get(0).appliedCommitSequences;
+            }
+            transactionManager.timestampOracle = timestampOracle;
+            partitions.add(transactionManager);
+        }
+        return partitions;
+    }
+
+    /**
+     * Creates all sites, each of which catches up from the others.
+     * @return map of siteId to dataManager
+     */
+    private static Map<Integer, DataManager> createSites() {
+        Map<Integer, DataManager> sites = new HashMap<>();
+        for (int i = 1; i <= SITE_COUNT; i++) {
+            sites.put(i, new DataManager(i));
+        }
+        for (DataManager site : sites.values()) {
+            site.setPeers(sites);
+        }
+        return sites;
+    }
+
+    /**
+     * Gets the sites hosting each variable by a placement policy.
+     * @param placementPolicy placementPolicy
+     * @return siteIds by variableId
+     */
+    private static BitSet[] getReplicaSiteIds(PlacementPolicy placementPolicy) {
+        BitSet[] replicaSiteIds = new BitSet[DataManager.VARIABLE_COUNT + 1];
+        for (int vid = 1; vid <= DataManager.VARIABLE_COUNT; vid++) {
+            replicaSiteIds[vid] = new BitSet(SITE_COUNT + 1);
+            for (int sid = 1; sid <= SITE_COUNT; sid++) {
+                if (placementPolicy.isHosted(vid, sid)) {
+                    replicaSiteIds[vid].set(sid);
+                }
+            }
+        }
+        return replicaSiteIds;
+    }
+
+    /**
+     * Returns whether a site is up. Transaction managers fail and recover sites, so they know
+     * without asking them.
+     * @param sid siteId
+     * @return boolean
+     */
+    private boolean isActive(int sid) {
+        return activeSiteIds.get(sid);
+    }
+
+    /**
+     * Returns whether a site is up and hosts a variable by the placement policy.
+     * @param sid siteId
+     * @param vid variableId
+     * @return boolean
+     */
+    private boolean isAvailable(int sid, int vid) {
+        return activeSiteIds.get(sid) && getReplicaCount(vid) > 0 && replicaSiteIds[vid].get(sid);
+    }
+
+    /**
+     * Gets number of sites hosting a variable.
+     * @param vid variableId
+     * @return replicaCount
+     */
+    private int getReplicaCount(int vid) {
+        return vid < 1 || vid > DataManager.VARIABLE_COUNT ? 0 : replicaSiteIds[vid].cardinality();
+    }
+
+    /**
+     * Gets partitionId.
+     * @return partitionId
+     */
+    public int getPartitionId() {
+        return partitionId;
+    }
+
+    /**
+     * Gets the timestamp oracle that drivers of this transaction manager take their clocks from.
+     * @return timestampOracle
+     */
+    public TimestampOracle getTimestampOracle() {
+        return timestampOracle;
+    }
+
+    /**
+     * Gets the transaction manager owning a transaction.
+     * @param tid transactionId
+     * @return transactionManager
+     */
+    public TransactionManager getOwner(int tid) {
+        return partitions.get(Math.floorMod(tid, partitions.size()));
+    }
+
+    /**
+     * Gets the slot of a variable in arrays indexed by variableId, which is 0 for a variable that
+     * does not exist.
+     * @param vid variableId
+     * @return slot
+     */
+    private static int getVariableSlot(int vid) {
+        return vid < 1 || vid > DataManager.VARIABLE_COUNT ? 0 : vid;
+    }
+
+    /**
+     * Gets the transaction manager owning a variable, which knows the partitions with operations
+     * waiting on it.
+     * @param vid variableId
+     * @return transactionManager
+     */
+    private TransactionManager getVariableOwner(int vid) {
+        return partitions.get(Math.floorMod(getVariableSlot(vid), partitions.size()));
+    }
+
+    /**
+     * Sends a message to the partition owning its transaction and waits for the reply.
+     * @param message message
+     * @return replied message
+     */
+    private PartitionMessage sendToOwner(PartitionMessage message) {
+        getOwner(message.getTransactionId()).handle(message);
+        return message;
+    }
+
+    /**
+     * Handles a message from the transaction manager of a partition and fills in its reply.
+     * @param m message
+     */
+    public void handle(PartitionMessage m) {
+        int tid = m.getTransactionId();
+        switch (m.getType()) {
+            case PROBE:
+                m.setResult(isCyclic(m));
+                break;
+            case GET_TRANSACTION:
+                m.setFrame(getFrame(tid));
+                break;
+            case IS_WAITING:
+                m.setResult(isWaiting(tid));
+                break;
+            case IS_BLOCKED:
+                m.setResult(isBlocked(tid));
+                break;
+            case COUNT_BLOCKED:
+                m.setCount(getBlockedReadWriteCount());
+                break;
+            case COUNT_WAITING:
+                m.setCount(waitingOperations.size());
+                break;
+            case GET_WAITING_OPERATIONS:
+                m.setOperations(getRetriableOperations());
+                break;
+            case GET_CONFLICT_WAITING_BEFORE:
+                m.setOperation(getOwnedConflictWaitingBefore(m.isWriteOnly(), tid, m.getVariableId(),
+                        m.getTimestamp(), m.isUpdate(), m.getPriority()));
+                break;
+            case SCAN_CONFLICT_WAITING_BEFORE:
+                m.setOperation(getPartitionConflictWaitingBefore(m.isWriteOnly(), tid, m.getVariableId(),
+                        m.getTimestamp(), m.isUpdate(), m.getPriority()));
+                break;
+            case START_WAITING:
+                waitingPartitionIds[getVariableSlot(m.getVariableId())].set(m.getPartitionId());
+                break;
+            case STOP_WAITING:
+                waitingPartitionIds[getVariableSlot(m.getVariableId())].clear(m.getPartitionId());
+                break;
+            case RETRY:
+                retryWaitingOperation(m.getOperation());
+                break;
+            case REMOVE_WAITS_FOR:
+                removeWaitsForEdges(tid);
+                break;
+            case ABORT:
+                abort(tid);
+                break;
+            case FAIL:
+                abortOnFailure(m);
+                break;
+            case COMPLETE_COMMITS:
+                completeCommits();
+                break;
+        }
+    }
+
+    /**
+     * Replicates variables by quorums instead of available copies. Reads lock r replicas and
+     * writes lock w replicas, and the replica with the greatest version number is read. A
+     * variable with fewer replicas than a quorum uses all of its replicas.
+     * @param r readQuorumSize
+     * @param w writeQuorumSize
+     */
+    public void setQuorumReplication(int r, int w) {
+        if (r < 1 || w < 1 || r + w <= SITE_COUNT || 2 * w <= SITE_COUNT || isOptimistic) {
+            throw new IllegalArgumentException(String.format(
+                    "invalid quorum sizes r=%d, w=%d for %d sites%s", r, w, SITE_COUNT,
+                    isOptimistic ? " in optimistic mode" : ""));
+        }
+        replicationMode = ReplicationMode.QUORUM;
+        readQuorumSize = r;
+        writeQuorumSize = w;
+        for (DataManager site : sites.values()) {
+            site.setQuorumReplicated(true);
+        }
+    }
+
+    /**
+     * Sets the stream that events of this transaction manager are given to. With null, events
+     * are not even formatted.
+     * @param o output
+     */
+    public void setOutput(PrintStream o) {
+        output = o;
+    }
+
+    /**
+     * Sets the stream that events of a transaction are given to instead of the output of this
+     * transaction manager, until the transaction commits or aborts.
+     * @param tid transactionId
+     * @param o output
+     */
+    public void setOutput(int tid, PrintStream o) {
+        transactionOutputs.put(tid, o);
+    }
+
+    /**
+     * Gets the stream that events of a transaction are given to.
+     * @param tid transactionId
+     * @return output, or null if events are suppressed
+     */
+    private PrintStream getOutput(int tid) {
+        PrintStream transactionOutput = transactionOutputs.get(tid);
+        return transactionOutput == null ? output : transactionOutput;
+    }
+
+    /**
+     * Sets the transport delivering messages to sites.
+     * @param t transport
+     */
+    public void setTransport(SiteTransport t) {
+        transport.close();
+        transport = t;
+        transport.connect(sites);
+    }
+
+    /**
+     * Sets the log of commit decisions.
+     * @param log coordinatorLog
+     */
+    public void setCoordinatorLog(CoordinatorLog log) {
+        coordinatorLog.close();
+        coordinatorLog = log;
+    }
+
+    /**
+     * Completes pending commits and releases resources of the coordinator log and the transport.
+     */
+    public void close() {
+        completeCommits();
+        coordinatorLog.close();
+        transport.close();
+    }
+
+    /**
+     * Releases resources of all sites, which are the segment files of spilled versions. This
+     * calls the sites directly, since it runs after the transports of all partitions are closed.
+     */
+    public void closeSites() {
+        for (DataManager site : sites.values()) {
+            site.close();
+        }
+    }
+
+    /**
+     * Stores variables of all sites off the heap. This is only allowed before any transaction
+     * begins.
+     */
+    public void setOffHeapStorage() {
+        for (DataManager site : sites.values()) {
+            site.setOffHeapStorage();
+        }
+    }
+
+    /**
+     * Replicates even variables on k sites chosen by rendezvous hashing instead of all sites.
+     * Odd variables stay at their home sites. This is only allowed before any transaction begins
+     * and before the storage of variables is set.
+     * @param k replicationFactor
+     */
+    public void setReplicationFactor(int k) {
+        PlacementPolicy placementPolicy = new PlacementPolicy(k, SITE_COUNT);
+        for (DataManager site : sites.values()) {
+            site.setPlacementPolicy(placementPolicy);
+        }
+        replicaSiteIds = getReplicaSiteIds(placementPolicy);
+    }
+
+    /**
+     * Sets the stats that operations, commits, aborts and blocks are counted in. Partitions of a
+     * replay share them.
+     * @param s stats, or null
+     */
+    public void setStats(EngineStats s) {
+        stats = s;
+    }
+
+    /**
+     * Keeps the newest n committed values of each variable of all sites in memory, and spills
+     * older ones to memory-mapped segment files in a directory, so that long-running read-only
+     * transactions do not pin their versions on the heap.
+     * @param n maxInMemoryVersionCount
+     * @param dir directory of segment files
+     */
+    public void setVersionSpill(int n, Path dir) {
+        if (n < 1) {
+            throw new IllegalArgumentException(String.format("invalid number of versions in memory %d", n));
+        }
+        for (DataManager site : sites.values()) {
+            site.setVersionSpill(dir, n);
+        }
+    }
+
+    /**
+     * Sets the scheduler of waiting operations. FIFO retries them in order of arrival, a waiting
+     * operation holds back later operations on its variable, and a deadlock aborts the youngest
+     * transaction. PRIORITY retries them by the effective priority of their transactions, which
+     * is the priority given at begin plus one per aging interval blocked, so that a waiting
+     * transaction eventually outranks all others. A waiting operation only holds back operations
+     * of transactions it is not outranked by, and a deadlock aborts the transaction with the
+     * lowest effective priority, then the least work done, then the youngest one.
+     * @param s scheduler
+     */
+    public void setScheduler(Scheduler s) {
+        scheduler = s;
+    }
+
+    /**
+     * Sets the number of ticks blocked that raise the effective priority of a transaction by one.
+     * @param n agingInterval
+     */
+    public void setAgingInterval(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException(String.format("invalid aging interval %d", n));
+        }
+        agingInterval = n;
+    }
+
+    /**
+     * Gets the effective priority of a transaction of any partition, asking the owner if it is
+     * another partition.
+     * @param tid transactionId
+     * @return effective priority
+     */
+    private int getEffectivePriority(int tid) {
+        if (getOwner(tid) != this) {
+            return sendToOwner(new PartitionMessage(PartitionMessage.MessageType.GET_TRANSACTION, tid))
+                    .getFrame().getEffectivePriority();
+        }
+        Transaction transaction = transactions.get(tid);
+        return transaction.getPriority() + transaction.getWaitTicks() / agingInterval;
+    }
+
+    /**
+     * Describes a transaction of this partition for choosing a deadlock victim.
+     * @param tid transactionId
+     * @return frame, or null if the transaction does not exist
+     */
+    private PartitionMessage.Frame getFrame(int tid) {
+        Transaction transaction = transactions.get(tid);
+        if (transaction == null) {
+            return null;
+        }
+        return new PartitionMessage.Frame(tid, transaction.getTimestamp(), getEffectivePriority(tid),
+                transaction.getExecutedOperationCount());
+    }
+
+    /**
+     * Returns whether a waiting operation of this partition holds back a new operation of a
+     * transaction. Under the priority scheduler, an operation left waiting by a transaction that
+     * ended while blocked has no priority and holds nothing back.
+     * @param priority effective priority of the transaction of the new operation, used only by
+     *                 the priority scheduler
+     * @param operation waiting operation
+     * @return boolean
+     */
+    private boolean holdsBack(int priority, Operation operation) {
+        return !Scheduler.PRIORITY.equals(scheduler) || transactions.containsKey(operation.getTransactionId())
+                && getEffectivePriority(operation.getTransactionId()) >= priority;
+    }
+
+    /**
+     * Runs read-write transactions optimistically. Writes are buffered in the transaction and
+     * reads take no locks, so a transaction never waits for another one. At commit, the
+     * transaction is validated against commits of the variables it read, and its writes lock
+     * the available copies only for the commit window. This is only allowed with available
+     * copies replication.
+     */
+    public void setOptimistic() {
+        if (ReplicationMode.QUORUM.equals(replicationMode)) {
+            throw new IllegalArgumentException("optimistic mode needs available copies replication");
+        }
+        isOptimistic = true;
+    }
+
+    /**
+     * Returns whether a transaction runs optimistically.
+     * @param transaction transaction
+     * @return boolean
+     */
+    private boolean runsOptimistically(Transaction transaction) {
+        return isOptimistic && Transaction.TransactionType.READ_WRITE.equals(transaction.getType());
+    }
+
+    /**
+     * Sets the policy to choose sites for reads.
+     * @param p readPolicy
+     */
+    public void setReadPolicy(ReadPolicy p) {
+        readPolicy = p;
+    }
+
+    /**
+     * Sets the number of replicated variables copied to recovered sites per tick. The copying is
+     * off if this is 0.
+     * @param n catchUpRate
+     */
+    public void setCatchUpRate(int n) {
+        catchUpRate = n;
+    }
+
+    /**
+     * Limits the number of active read-write transactions of all partitions by admission
+     * control, with a limit adapting to contention up to a maximum. Partitions share one
+     * admission controller.
+     * @param n maximum limit
+     */
+    public void setAdmissionControl(int n) {
+        TransactionManager first = partitions.get(0);
+        if (first.admissionController == null) {
+            first.admissionController = new AdmissionController(n);
+        }
+        admissionController = first.admissionController;
+    }
+
+    /**
+     * Returns whether a command of a transaction is deferred by admission control, which is
+     * while the transaction waits for admission or has earlier commands deferred.
+     * @param tid transactionId
+     * @param ts timestamp of the command
+     * @return boolean
+     */
+    private boolean isDeferred(int tid, long ts) {
+        if (admissionController == null) {
+            return false;
+        }
+        admissionController.setTimestamp(ts);
+        return admissionController.isDeferred(tid);
+    }
+
+    /**
+     * Begins a new transaction if not exists.
+     * @param tid transactionId
+     * @param ts timestamp
+     */
+    public void begin(int tid, long ts) {
+        begin(tid, ts, 0);
+    }
+
+    /**
+     * Begins a new transaction with a priority if not exists. Under admission control, a begin
+     * beyond the limit waits for admission, and the transaction begins once it is admitted.
+     * @param tid transactionId
+     * @param ts timestamp
+     * @param priority priority, where a greater one is scheduled first
+     */
+    public void begin(int tid, long ts, int priority) {
+        if (transactions.containsKey(tid) || isDeferred(tid, ts)) {
+            return;
+        }
+        if (admissionController != null && !admissionController.tryAdmit()) {
+            admissionController.enqueue(tid, () -> executeBegin(tid, admissionController.getTimestamp(), priority));
+            PrintStream transactionOutput = getOutput(tid);
+            if (transactionOutput != null) {
+                transactionOutput.println(String.format("T%d waits for admission", tid));
+            }
+            return;
+        }
+        executeBegin(tid, ts, priority);
+    }
+
+    /**
+     * Executes the begin of a read-write transaction.
+     * @param tid transactionId
+     * @param ts timestamp
+     * @param priority priority
+     */
+    private void executeBegin(int tid, long ts, int priority) {
+        if (!transactions.containsKey(tid)) {
+            Transaction transaction = new Transaction(tid, ts, Transaction.TransactionType.READ_WRITE);
+            transaction.setPriority(priority);
+            transactions.put(tid, transaction);
+            waitsForGraph.put(tid, new HashSet<>());
+            PrintStream transactionOutput = getOutput(tid);
+            if (transactionOutput != null) {
+                transactionOutput.println(String.format("T%d begins", tid));
+            }
+        }
+    }
+
+    /**
+     * Begins a new read-only transaction if not exists. Pending commits are completed first, so
+     * that the snapshot of the transaction includes them.
+     * @param tid transactionId
+     * @param ts timestamp
+     */
+    public void beginRO(int tid, long ts) {
+        if (!transactions.containsKey(tid)) {
+            for (TransactionManager partition : partitions) {
+                partition.handle(new PartitionMessage(PartitionMessage.MessageType.COMPLETE_COMMITS, tid));
+            }
+            transactions.put(tid, new Transaction(tid, ts, Transaction.TransactionType.READ_ONLY));
+            PrintStream transactionOutput = getOutput(tid);
+            if (transactionOutput != null) {
+                transactionOutput.println(String.format("T%d begins and is read-only", tid));
+            }
+        }
+    }
+
+    /**
+     * Ends a transaction if exists. A read-write transaction commits by two-phase commit: active
+     * sites it accessed are asked to prepare at the same time, and the commit decision is logged
+     * before the sites voting yes are told to commit. A single no vote aborts the transaction.
+     * Aborts are presumed and not logged.
+     * @param tid transactionId
+     * @param ts timestamp
+     */
+    public void end(int tid, long ts) {
+        if (isDeferred(tid, ts)) {
+            admissionController.defer(tid, () -> end(tid, admissionController.getTimestamp()));
+            return;
+        }
+        Transaction transaction = transactions.get(tid);
+        if (transaction == null || transaction.isCommitting()) {
+            return;
+        }
+        FlightEvents.EndEvent event = new FlightEvents.EndEvent();
+        event.begin();
+        executeEnd(tid, ts);
+        if (event.shouldCommit()) {
+            event.transactionId = tid;
+            event.isReadOnly = Transaction.TransactionType.READ_ONLY.equals(transaction.getType());
+            event.isCommitted = !transaction.isAborted();
+            event.commit();
+        }
+    }
+
+    /**
+     * Executes the end of a transaction.
+     * @param tid transactionId
+     * @param ts timestamp
+     */
+    private void executeEnd(int tid, long ts) {
+        if (transactions.containsKey(tid) && !transactions.get(tid).isCommitting()) {
+            Transaction transaction = transactions.get(tid);
+            if (transaction.isAborted() || hasLockLossSiteDown(transaction)) {
+                PrintStream transactionOutput = getOutput(tid);
+                if (transactionOutput != null) {
+                    transactionOutput.println(String.format("T%d aborts due to previous access of a down site", tid));
+                }
+                recordAbort(tid, EngineStats.AbortReason.SITE_FAILURE);
+                abort(tid);
+            } else if (Transaction.TransactionType.READ_WRITE.equals(transaction.getType())) {
+                if (runsOptimistically(transaction) && !validateAndInstall(transaction)) {
+                    return;
+                }
+                List<Integer> siteIds = new ArrayList<>();
+                BitSet accessedSites = transaction.getAccessedSites();
+                for (int sid = accessedSites.nextSetBit(0); sid >= 0; sid = accessedSites.nextSetBit(sid + 1)) {
+                    if (isActive(sid)) {
+                        siteIds.add(sid);
+                    }
+                }
+                Map<Integer, SiteMessage> votes = broadcast(siteIds,
+                        sid -> new SiteMessage(SiteMessage.MessageType.PREPARE, tid, 0, ts));
+                Map<Integer, SiteMessage> commits = new LinkedHashMap<>();
+                for (Map.Entry<Integer, SiteMessage> vote : votes.entrySet()) {
+                    if (SiteMessage.Vote.NO.equals(vote.getValue().getVote())) {
+                        PrintStream transactionOutput = getOutput(tid);
+                        if (transactionOutput != null) {
+                            transactionOutput.println(String.format("T%d aborts due to a no vote from site %d", tid, vote.getKey()));
+                        }
+                        recordAbort(tid, EngineStats.AbortReason.NO_VOTE);
+                        abort(tid);
+                        return;
+                    } else if (SiteMessage.Vote.YES.equals(vote.getValue().getVote())) {
+                        commits.put(vote.getKey(), new SiteMessage(SiteMessage.MessageType.COMMIT, tid, 0, ts));
+                    }
+                }
+                transaction.setCommitting();
+                int sequence = ++lastCommitSequences[0];
+                for (int vid : transaction.getWriteBuffer().keySet()) {
+                    lastCommitSequences[vid] = sequence;
+                }
+                waitsForGraph.get(tid).clear();
+                coordinatorLog.appendCommit(tid, ts, commits.keySet());
+                pendingCommits.put(tid, commits);
+                if (coordinatorLog.isGroupReady()) {
+                    completeCommits();
+                }
+            } else {
+                PrintStream transactionOutput = getOutput(tid);
+                if (transactionOutput != null) {
+                    transactionOutput.println(String.format("T%d commits", tid));
+                }
+                if (stats != null) {
+                    stats.recordCommit(tid);
+                }
+                transactions.remove(tid);
+                transactionOutputs.remove(tid);
+                removeFromWaitsForGraph(tid);
+                retryAll();
+            }
+        }
+    }
+
+    /**
+     * Forces pending commit decisions to the coordinator log and tells the sites to commit. The
+     * commit messages of all transactions in the group are sent in one round trip.
+     */
+    public void completeCommits() {
+        List<Integer> transactionIds = coordinatorLog.force();
+        if (transactionIds.isEmpty()) {
+            return;
+        }
+        Map<Integer, List<SiteMessage>> batches = new LinkedHashMap<>();
+        for (int tid : transactionIds) {
+            for (Map.Entry<Integer, SiteMessage> commit : pendingCommits.get(tid).entrySet()) {
+                batches.computeIfAbsent(commit.getKey(), sid -> new ArrayList<>()).add(commit.getValue());
+            }
+        }
+        transport.send(batches);
+        for (int tid : transactionIds) {
+            pendingCommits.remove(tid);
+            for (int vid : transactions.get(tid).getWriteBuffer().keySet()) {
+                appliedCommitSequences[vid] = lastCommitSequences[vid];
+            }
+            PrintStream transactionOutput = getOutput(tid);
+            if (transactionOutput != null) {
+                transactionOutput.println(String.format("T%d commits", tid));
+            }
+            if (stats != null) {
+                stats.recordCommit(tid);
+            }
+            transactions.remove(tid);
+            transactionOutputs.remove(tid);
+            removeFromWaitsForGraph(tid);
+            if (admissionController != null) {
+                admissionController.release(true);
+            }
+        }
+        retryAll();
+    }
+
+    /**
+     * Reads value from a variable.
+     * @param tid transactionId
+     * @param vid variableId
+     * @param ts timestamp
+     */
+    public void read(int tid, int vid, long ts) {
+        if (isDeferred(tid, ts)) {
+            admissionController.defer(tid, () -> read(tid, vid, admissionController.getTimestamp()));
+            return;
+        }
+        read(flyweightOperation.reset(ts, tid, vid, Operation.OperationType.READ, 0, null));
+    }
+
+    /**
+     * Reads value from a variable for a later write. The read takes update locks, which let
+     * other transactions read but not read for update or write, on all available copies, so
+     * that the write needs no upgrade that could deadlock against another reader. A read-only
+     * transaction, or one running optimistically, reads as usual.
+     * @param tid transactionId
+     * @param vid variableId
+     * @param ts timestamp
+     */
+    public void readForUpdate(int tid, int vid, long ts) {
+        if (isDeferred(tid, ts)) {
+            admissionController.defer(tid, () -> readForUpdate(tid, vid, admissionController.getTimestamp()));
+            return;
+        }
+        Transaction transaction = transactions.get(tid);
+        boolean isUpdate = transaction != null && Transaction.TransactionType.READ_WRITE.equals(transaction.getType())
+                && !runsOptimistically(transaction);
+        read(flyweightOperation.reset(ts, tid, vid,
+                isUpdate ? Operation.OperationType.READ_FOR_UPDATE : Operation.OperationType.READ, 0, null));
+    }
+
+    /**
+     * Performs a read operation as a flight recorder event.
+     * @param operation operation
+     */
+    private void read(Operation operation) {
+        FlightEvents.OperationEvent event = new FlightEvents.OperationEvent();
+        event.begin();
+        boolean wasBlocked = isBlocked(operation.getTransactionId());
+        readSiteId = 0;
+        executeRead(operation);
+        commitOperationEvent(event, operation, wasBlocked);
+        recordBlocking(operation.getTransactionId(), wasBlocked);
+    }
+
+    /**
+     * Executes a read operation. The flyweight operation is copied only if it has to wait.
+     * @param operation operation
+     */
+    private void executeRead(Operation operation) {
+        int tid = operation.getTransactionId();
+        int vid = operation.getVariableId();
+        long ts = operation.getTimestamp();
+        boolean isUpdate = Operation.OperationType.READ_FOR_UPDATE.equals(operation.getType());
+        if (transactions.containsKey(tid)) {
+            Transaction transaction = transactions.get(tid);
+            Integer conflictTransactionId = runsOptimistically(transaction) ? null
+                    : getConflictWriteOperationWaitingBefore(tid, vid, ts, isUpdate);
+            if (conflictTransactionId != null) {
+                addToWaitsForGraphFromWaitingOperations(tid, conflictTransactionId);
+            } else if (runsOptimistically(transaction)) {
+                if (readOptimistically(transaction, operation)) {
+                    return;
+                }
+            } else {
+                if (ReplicationMode.QUORUM.equals(replicationMode)) {
+                    if (readFromQuorum(transaction, operation)) {
+                        return;
+                    }
+                } else if (isUpdate) {
+                    if (readForUpdateFromAvailableCopies(transaction, operation)) {
+                        return;
+                    }
+                } else {
+                    for (int i : getReadOrder(transaction)) {
+                        if (isAvailable(i, vid)) {
+                            SiteMessage message = send(i, flyweightMessage.reset(SiteMessage.MessageType.READ,
+                                    transaction.getType(), transaction.getTimestamp(), operation));
+                            if (message.getResult()) {
+                                readSiteId = i;
+                                transaction.addAccessedSite(i);
+                                transaction.unblock();
+                                PrintStream transactionOutput = getOutput(tid);
+                                if (transactionOutput != null) {
+                                    transactionOutput.println(String.format("T%d reads x%d: %s", tid, vid,
+                                            Operation.formatValue(message.getValue(), message.getBlob())));
+                                }
+                                return;
+                            }
+                        }
+                    }
+                }
+                addToWaitsForGraphFromExecutedOperations(tid, vid);
+            }
+            if (!transaction.isBlocked()) {
+                addWaitingOperation(operation == flyweightOperation ? operation.copy() : operation);
+                transaction.block();
+                PrintStream transactionOutput = getOutput(tid);
+                if (transactionOutput != null) {
+                    transactionOutput.println(String.format("T%d blocked", tid));
+                }
+            }
+            detectDeadlock(tid);
+        }
+    }
+
+    /**
+     * Writes value to a variable for all copies stored in all available sites.
+     * @param tid transactionId
+     * @param vid variableId
+     * @param v value
+     * @param ts timestamp
+     */
+    public void write(int tid, int vid, int v, long ts) {
+        if (isDeferred(tid, ts)) {
+            admissionController.defer(tid, () -> write(tid, vid, v, admissionController.getTimestamp()));
+            return;
+        }
+        write(flyweightOperation.reset(ts, tid, vid, Operation.OperationType.WRITE, v, null));
+    }
+
+    /**
+     * Writes a blob value to a variable for all copies stored in all available sites. Each site
+     * copies the blob into its slab allocator.
+     * @param tid transactionId
+     * @param vid variableId
+     * @param b blob
+     * @param ts timestamp
+     */
+    public void writeBlob(int tid, int vid, ByteBuffer b, long ts) {
+        if (isDeferred(tid, ts)) {
+            admissionController.defer(tid, () -> writeBlob(tid, vid, b, admissionController.getTimestamp()));
+            return;
+        }
+        write(flyweightOperation.reset(ts, tid, vid, Operation.OperationType.WRITE, 0, b));
+    }
+
+    /**
+     * Performs a write operation as a flight recorder event.
+     * @param operation operation
+     */
+    private void write(Operation operation) {
+        FlightEvents.OperationEvent event = new FlightEvents.OperationEvent();
+        event.begin();
+        boolean wasBlocked = isBlocked(operation.getTransactionId());
+        readSiteId = 0;
+        executeWrite(operation);
+        commitOperationEvent(event, operation, wasBlocked);
+        recordBlocking(operation.getTransactionId(), wasBlocked);
+    }
+
+    /**
+     * Gets the number of blocked read-write transactions of this partition.
+     * @return count
+     */
+    private int getBlockedReadWriteCount() {
+        int count = 0;
+        for (Transaction transaction : transactions.values()) {
+            if (transaction.isBlocked() && Transaction.TransactionType.READ_WRITE.equals(transaction.getType())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns whether a transaction exists and is blocked.
+     * @param tid transactionId
+     * @return boolean
+     */
+    private boolean isBlocked(int tid) {
+        Transaction transaction = transactions.get(tid);
+        return transaction != null && transaction.isBlocked();
+    }
+
+    /**
+     * Records in the stats whether an operation blocks or unblocks its transaction.
+     * @param tid transactionId
+     * @param wasBlocked whether the transaction was blocked before the operation
+     */
+    private void recordBlocking(int tid, boolean wasBlocked) {
+        if (stats != null) {
+            boolean isBlocked = isBlocked(tid);
+            if (!wasBlocked && isBlocked) {
+                stats.recordBlock(tid);
+            } else if (wasBlocked && !isBlocked && transactions.containsKey(tid)) {
+                stats.recordUnblock(tid);
+            }
+        }
+    }
+
+    /**
+     * Records an abort and its reason in the stats.
+     * @param tid transactionId
+     * @param reason abortReason
+     */
+    private void recordAbort(int tid, EngineStats.AbortReason reason) {
+        if (stats != null) {
+            stats.recordAbort(tid, reason);
+        }
+    }
+
+    /**
+     * Commits the flight recorder event of an operation if it is enabled.
+     * @param event event begun before the operation
+     * @param operation operation
+     * @param wasBlocked whether the transaction was blocked before the operation
+     */
+    private void commitOperationEvent(FlightEvents.OperationEvent event, Operation operation, boolean wasBlocked) {
+        if (event.shouldCommit()) {
+            event.transactionId = operation.getTransactionId();
+            event.variableId = operation.getVariableId();
+            event.siteId = readSiteId;
+            event.isWrite = Operation.OperationType.WRITE.equals(operation.getType());
+            event.isBlocked = isBlocked(operation.getTransactionId());
+            event.isUnblocked = wasBlocked && transactions.containsKey(operation.getTransactionId())
+                    && !event.isBlocked;
+            event.commit();
+        }
+    }
+
+    /**
+     * Executes a write operation. The flyweight operation is copied only if it has to wait.
+     * @param operation operation
+     */
+    private void executeWrite(Operation operation) {
+        int tid = operation.getTransactionId();
+        int vid = operation.getVariableId();
+        long ts = operation.getTimestamp();
+        if (transactions.containsKey(tid)) {
+            Transaction transaction = transactions.get(tid);
+            if (runsOptimistically(transaction)) {
+                transaction.bufferWrite(operation == flyweightOperation ? operation.copy() : operation);
+                transaction.unblock();
+                PrintStream transactionOutput = getOutput(tid);
+                if (transactionOutput != null) {
+                    transactionOutput.println(String.format("T%d writes x%d: %s", tid, vid,
+                            Operation.formatValue(operation.getValue(), operation.getBlob())));
+                }
+                return;
+            }
+            Integer conflictTransactionId = transaction.hasReadForUpdate(vid) ? null
+                    : getConflictOperationWaitingBefore(tid, vid, ts);
+            if (conflictTransactionId != null && (getOwner(conflictTransactionId) == this ? isWaiting(conflictTransactionId)
+                    : sendToOwner(new PartitionMessage(PartitionMessage.MessageType.IS_WAITING, conflictTransactionId)).getResult())) {
+                addToWaitsForGraphFromWaitingOperations(tid, conflictTransactionId);
+            } else if (ReplicationMode.QUORUM.equals(replicationMode)) {
+                if (writeToQuorum(transaction, operation)) {
+                    return;
+                }
+                addToWaitsForGraphFromExecutedOperations(tid, vid);
+            } else {
+                List<Integer> siteIds = getAvailableSiteIds(vid);
+                boolean canWrite = true;
+                if (siteIds.size() == 1) {
+                    canWrite = send(siteIds.get(0), flyweightMessage.reset(SiteMessage.MessageType.TRY_WRITE,
+                            transaction.getType(), ts, operation)).getResult();
+                } else {
+                    canWrite = broadcastFlyweight(siteIds, SiteMessage.MessageType.CAN_WRITE,
+                            transaction.getType(), ts, operation);
+                    if (canWrite) {
+                        broadcastFlyweight(siteIds, SiteMessage.MessageType.WRITE, transaction.getType(), ts, operation);
+                    }
+                }
+                if (canWrite) {
+                    for (int i = 0; i < siteIds.size(); i++) {
+                        transaction.addAccessedSite(siteIds.get(i));
+                    }
+                    transaction.unblock();
+                    PrintStream transactionOutput = getOutput(tid);
+                    if (transactionOutput != null) {
+                        transactionOutput.println(String.format("T%d writes x%d: %s", tid, vid,
+                                Operation.formatValue(operation.getValue(), operation.getBlob())));
+                    }
+                    return;
+                }
+                addToWaitsForGraphFromExecutedOperations(tid, vid);
+            }
+            if (!transaction.isBlocked()) {
+                addWaitingOperation(operation == flyweightOperation ? operation.copy() : operation);
+                transaction.block();
+                PrintStream transactionOutput = getOutput(tid);
+                if (transactionOutput != null) {
+                    transactionOutput.println(String.format("T%d blocked", tid));
+                }
+            }
+            detectDeadlock(tid);
+        }
+    }
+
+    /**
+     * Reads for a transaction running optimistically, without locking. A variable with a
+     * buffered write is read from the buffer, and otherwise the last committed value is read as
+     * a snapshot without end, and the commit sequence of that value is recorded for validation
+     * at commit.
+     * @param transaction transaction
+     * @param operation operation
+     * @return whether the read is done
+     */
+    private boolean readOptimistically(Transaction transaction, Operation operation) {
+        int tid = transaction.getId();
+        int vid = operation.getVariableId();
+        Operation bufferedWrite = transaction.getWriteBuffer().get(vid);
+        if (bufferedWrite != null) {
+            transaction.unblock();
+            PrintStream transactionOutput = getOutput(tid);
+            if (transactionOutput != null) {
+                transactionOutput.println(String.format("T%d reads x%d: %s", tid, vid,
+                        Operation.formatValue(bufferedWrite.getValue(), bufferedWrite.getBlob())));
+            }
+            return true;
+        }
+        for (int i : getReadOrder(transaction)) {
+            if (isAvailable(i, vid)) {
+                SiteMessage message = send(i, flyweightMessage.reset(SiteMessage.MessageType.READ,
+                        Transaction.TransactionType.READ_ONLY, Long.MAX_VALUE, operation));
+                if (message.getResult()) {
+                    readSiteId = i;
+                    transaction.addRead(vid, appliedCommitSequences[vid]);
+                    transaction.addAccessedSite(i);
+                    transaction.unblock();
+                    PrintStream transactionOutput = getOutput(tid);
+                    if (transactionOutput != null) {
+                        transactionOutput.println(String.format("T%d reads x%d: %s", tid, vid,
+                                Operation.formatValue(message.getValue(), message.getBlob())));
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Validates a transaction running optimistically and installs its buffered writes. It aborts
+     * if a commit of a variable it read has been decided since the value it read, even if the
+     * commit is not complete yet, or if a buffered write cannot lock all available copies right
+     * away, so that no transaction waits for the commit window.
+     * @param transaction transaction
+     * @return whether the transaction goes on to commit
+     */
+    private boolean validateAndInstall(Transaction transaction) {
+        int tid = transaction.getId();
+        for (Map.Entry<Integer, Integer> read : transaction.getReadSequences().entrySet()) {
+            if (lastCommitSequences[read.getKey()] > read.getValue()) {
+                PrintStream transactionOutput = getOutput(tid);
+                if (transactionOutput != null) {
+                    transactionOutput.println(String.format("T%d aborts due to failed validation of x%d", tid, read.getKey()));
+                }
+                recordAbort(tid, EngineStats.AbortReason.VALIDATION);
+                abort(tid);
+                return false;
+            }
+        }
+        for (Operation operation : transaction.getWriteBuffer().values()) {
+            List<Integer> siteIds = getAvailableSiteIds(operation.getVariableId());
+            boolean canWrite = !siteIds.isEmpty();
+            if (siteIds.size() == 1) {
+                canWrite = send(siteIds.get(0), flyweightMessage.reset(SiteMessage.MessageType.TRY_WRITE,
+                        transaction.getType(), operation.getTimestamp(), operation)).getResult();
+            } else if (canWrite) {
+                canWrite = broadcastFlyweight(siteIds, SiteMessage.MessageType.CAN_WRITE,
+                        transaction.getType(), operation.getTimestamp(), operation);
+                if (canWrite) {
+                    broadcastFlyweight(siteIds, SiteMessage.MessageType.WRITE, transaction.getType(),
+                            operation.getTimestamp(), operation);
+                }
+            }
+            if (!canWrite) {
+                PrintStream transactionOutput = getOutput(tid);
+                if (transactionOutput != null) {
+                    transactionOutput.println(String.format("T%d aborts due to a lock conflict on x%d at commit",
+                            tid, operation.getVariableId()));
+                }
+                recordAbort(tid, EngineStats.AbortReason.VALIDATION);
+                abort(tid);
+                return false;
+            }
+            for (int i = 0; i < siteIds.size(); i++) {
+                transaction.addAccessedSite(siteIds.get(i));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads from a read quorum of a variable. Replicas the transaction has written to go first,
+     * so that it sees its own uncommitted value.
+     * @param transaction transaction
+     * @param operation operation
+     * @return whether the read is done
+     */
+    private boolean readFromQuorum(Transaction transaction, Operation operation) {
+        int tid = transaction.getId();
+        int vid = operation.getVariableId();
+        List<Integer> siteIds = new ArrayList<>();
+        for (int i : getReadOrder(transaction)) {
+            if (isAvailable(i, vid)) {
+                siteIds.add(i);
+            }
+        }
+        Map<Integer, SiteMessage> replicas = broadcast(siteIds, sid -> new SiteMessage(
+                SiteMessage.MessageType.CAN_READ, transaction.getType(), transaction.getTimestamp(), operation));
+        List<Integer> quorum = new ArrayList<>();
+        for (int sid : siteIds) {
+            if (replicas.get(sid).getResult()) {
+                if (replicas.get(sid).isWriteLocked()) {
+                    quorum.add(0, sid);
+                } else {
+                    quorum.add(sid);
+                }
+            }
+        }
+        boolean isUpdate = Operation.OperationType.READ_FOR_UPDATE.equals(operation.getType());
+        int quorumSize = getQuorumSize(isUpdate ? writeQuorumSize : readQuorumSize, vid);
+        if (quorum.size() < quorumSize) {
+            return false;
+        }
+        quorum = quorum.subList(0, quorumSize);
+        int latest = quorum.get(0);
+        for (int sid : quorum) {
+            if (isNewerReplica(transaction, replicas.get(sid), replicas.get(latest))) {
+                latest = sid;
+            }
+        }
+        Map<Integer, SiteMessage> reads = broadcast(quorum, sid -> new SiteMessage(
+                SiteMessage.MessageType.READ, transaction.getType(), transaction.getTimestamp(), operation));
+        for (int sid : quorum) {
+            transaction.addAccessedSite(sid);
+        }
+        if (isUpdate) {
+            transaction.addReadForUpdate(vid);
+        }
+        readSiteId = latest;
+        transaction.unblock();
+        PrintStream transactionOutput = getOutput(tid);
+        if (transactionOutput != null) {
+            transactionOutput.println(String.format("T%d reads x%d: %s", tid, vid,
+                    Operation.formatValue(reads.get(latest).getValue(), reads.get(latest).getBlob())));
+        }
+        return true;
+    }
+
+    /**
+     * Reads for update from available copies. Update locks are taken on all available copies, as
+     * a write would lock them, and the value is read from the first readable copy in read order.
+     * @param transaction transaction
+     * @param operation operation
+     * @return whether the read is done
+     */
+    private boolean readForUpdateFromAvailableCopies(Transaction transaction, Operation operation) {
+        int tid = transaction.getId();
+        int vid = operation.getVariableId();
+        List<Integer> siteIds = getAvailableSiteIds(vid);
+        if (siteIds.isEmpty() || !broadcastFlyweight(siteIds, SiteMessage.MessageType.CAN_WRITE,
+                transaction.getType(), transaction.getTimestamp(), operation)) {
+            return false;
+        }
+        for (int i : getReadOrder(transaction)) {
+            if (isAvailable(i, vid)) {
+                SiteMessage message = send(i, flyweightMessage.reset(SiteMessage.MessageType.READ,
+                        transaction.getType(), transaction.getTimestamp(), operation));
+                if (message.getResult()) {
+                    broadcastFlyweight(siteIds, SiteMessage.MessageType.LOCK_FOR_UPDATE, transaction.getType(),
+                            transaction.getTimestamp(), operation);
+                    for (int j = 0; j < siteIds.size(); j++) {
+                        transaction.addAccessedSite(siteIds.get(j));
+                    }
+                    transaction.addReadForUpdate(vid);
+                    readSiteId = i;
+                    transaction.unblock();
+                    PrintStream transactionOutput = getOutput(tid);
+                    if (transactionOutput != null) {
+                        transactionOutput.println(String.format("T%d reads x%d: %s", tid, vid,
+                                Operation.formatValue(message.getValue(), message.getBlob())));
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the order of sites to try for a read by the read policy. The array is reused by the
+     * next call.
+     * @param transaction transaction
+     * @return siteIds in order
+     */
+    private int[] getReadOrder(Transaction transaction) {
+        for (int i = 0; i < SITE_COUNT; i++) {
+            readOrder[i] = i + 1;
+        }
+        if (ReadPolicy.ROUND_ROBIN.equals(readPolicy)) {
+            for (int i = 0; i < SITE_COUNT; i++) {
+                readOrder[i] = (nextReadSiteId - 1 + i) % SITE_COUNT + 1;
+            }
+            nextReadSiteId = nextReadSiteId % SITE_COUNT + 1;
+        } else if (ReadPolicy.LEAST_LOADED.equals(readPolicy)) {
+            for (int i = 0; i < SITE_COUNT; i++) {
+                flyweightSiteIds[i] = i + 1;
+                flyweightMessages[i].reset(SiteMessage.MessageType.GET_LOCK_COUNT, 0, 0, 0);
+            }
+            transport.send(flyweightSiteIds, flyweightMessages, SITE_COUNT);
+            for (int i = 0; i < SITE_COUNT; i++) {
+                readOrderKeys[i + 1] = flyweightMessages[i].getLockCount();
+            }
+            sortReadOrder();
+        } else if (ReadPolicy.STICKY.equals(readPolicy)) {
+            for (int sid = 1; sid <= SITE_COUNT; sid++) {
+                readOrderKeys[sid] = transaction.hasAccessedSite(sid) ? 0 : 1;
+            }
+            sortReadOrder();
+        }
+        return readOrder;
+    }
+
+    /**
+     * Sorts the read order by the keys of sites, keeping sites with equal keys in order.
+     */
+    private void sortReadOrder() {
+        for (int i = 1; i < SITE_COUNT; i++) {
+            int sid = readOrder[i];
+            int j = i - 1;
+            while (j >= 0 && readOrderKeys[readOrder[j]] > readOrderKeys[sid]) {
+                readOrder[j + 1] = readOrder[j];
+                j--;
+            }
+            readOrder[j + 1] = sid;
+        }
+    }
+
+    /**
+     * Returns whether a replica holds a newer value than another one for a transaction.
+     * Read-only transactions compare commit timestamps of their snapshot, and read-write
+     * transactions compare version numbers.
+     * @param transaction transaction
+     * @param replica reply of the replica to compare
+     * @param latest reply of the latest replica so far
+     * @return boolean
+     */
+    private boolean isNewerReplica(Transaction transaction, SiteMessage replica, SiteMessage latest) {
+        if (Transaction.TransactionType.READ_ONLY.equals(transaction.getType())) {
+            return replica.getCommitTimestamp() > latest.getCommitTimestamp();
+        }
+        if (latest.isWriteLocked()) {
+            return false;
+        }
+        return replica.getVersion() > latest.getVersion();
+    }
+
+    /**
+     * Writes to a write quorum of a variable. Replicas the transaction has written to go first,
+     * so that an earlier write on other replicas is never left behind.
+     * @param transaction transaction
+     * @param operation operation
+     * @return whether the write is done
+     */
+    private boolean writeToQuorum(Transaction transaction, Operation operation) {
+        int tid = transaction.getId();
+        int vid = operation.getVariableId();
+        List<Integer> siteIds = getAvailableSiteIds(vid);
+        Map<Integer, SiteMessage> replicas = broadcast(siteIds, sid -> new SiteMessage(
+                SiteMessage.MessageType.CAN_WRITE, transaction.getType(), operation.getTimestamp(), operation));
+        List<Integer> quorum = new ArrayList<>();
+        for (int sid : siteIds) {
+            if (replicas.get(sid).getResult()) {
+                if (replicas.get(sid).isWriteLocked()) {
+                    quorum.add(0, sid);
+                } else {
+                    quorum.add(sid);
+                }
+            }
+        }
+        int quorumSize = getQuorumSize(writeQuorumSize, vid);
+        if (quorum.size() < quorumSize) {
+            return false;
+        }
+        quorum = quorum.subList(0, quorumSize);
+        int version = 0;
+        for (int sid : quorum) {
+            version = Math.max(version, replicas.get(sid).getVersion());
+        }
+        int versionToCommit = version + 1;
+        broadcast(quorum, sid -> {
+            SiteMessage message = new SiteMessage(SiteMessage.MessageType.WRITE, transaction.getType(),
+                    operation.getTimestamp(), operation);
+            message.setVersionToCommit(versionToCommit);
+            return message;
+        });
+        for (int sid : quorum) {
+            transaction.addAccessedSite(sid);
+        }
+        transaction.unblock();
+        PrintStream transactionOutput = getOutput(tid);
+        if (transactionOutput != null) {
+            transactionOutput.println(String.format("T%d writes x%d: %s", tid, vid,
+                    Operation.formatValue(operation.getValue(), operation.getBlob())));
+        }
+        return true;
+    }
+
+    /**
+     * Gets siteIds of active sites holding a variable. The list is reused by the next call.
+     * @param vid variableId
+     * @return siteIds
+     */
+    private List<Integer> getAvailableSiteIds(int vid) {
+        List<Integer> siteIds = availableSiteIds;
+        siteIds.clear();
+        for (int i = 1; i <= SITE_COUNT; i++) {
+            if (isAvailable(i, vid)) {
+                siteIds.add(i);
+            }
+        }
+        return siteIds;
+    }
+
+    /**
+     * Sends a message to a site and waits for the reply.
+     * @param sid siteId
+     * @param message message
+     * @return replied message
+     */
+    private SiteMessage send(int sid, SiteMessage message) {
+        transport.send(sid, message);
+        return message;
+    }
+
+    /**
+     * Sends a message to each of the sites at the same time and waits for all replies.
+     * @param siteIds siteIds
+     * @param messageForSite function making the message for a siteId
+     * @return map of siteId to replied message
+     */
+    private Map<Integer, SiteMessage> broadcast(Collection<Integer> siteIds, IntFunction<SiteMessage> messageForSite) {
+        Map<Integer, List<SiteMessage>> batches = new LinkedHashMap<>();
+        Map<Integer, SiteMessage> replies = new LinkedHashMap<>();
+        for (int sid : siteIds) {
+            SiteMessage message = messageForSite.apply(sid);
+            batches.put(sid, List.of(message));
+            replies.put(sid, message);
+        }
+        transport.send(batches);
+        return replies;
+    }
+
+    /**
+     * Sends a flyweight request with an operation to each of the sites at the same time and
+     * waits for all replies. The replies are overwritten by the next call.
+     * @param siteIds siteIds
+     * @param t messageType
+     * @param tt transactionType
+     * @param ts timestamp
+     * @param o operation
+     * @return whether all sites accept the request
+     */
+    private boolean broadcastFlyweight(List<Integer> siteIds, SiteMessage.MessageType t,
+                                       Transaction.TransactionType tt, long ts, Operation o) {
+        for (int i = 0; i < siteIds.size(); i++) {
+            flyweightSiteIds[i] = siteIds.get(i);
+            flyweightMessages[i].reset(t, tt, ts, o);
+        }
+        transport.send(flyweightSiteIds, flyweightMessages, siteIds.size());
+        boolean result = true;
+        for (int i = 0; i < siteIds.size(); i++) {
+            result = result && flyweightMessages[i].getResult();
+        }
+        return result;
+    }
+
+    /**
+     * Gets the quorum size of a variable, which is bounded by its number of replicas.
+     * @param size configured quorum size
+     * @param vid variableId
+     * @return quorumSize
+     */
+    private int getQuorumSize(int size, int vid) {
+        return Math.min(size, getReplicaCount(vid));
+    }
+
+    /**
+     * Makes dump give only variables committed at each site since the previous dump.
+     */
+    public void setDeltaDump() {
+        isDeltaDump = true;
+    }
+
+    /**
+     * Gives the committed values of all copies of all variables at all sites, including sites
+     * that are down, or only those committed since the previous dump if dumps are deltas.
+     */
+    public void dump() {
+        for (int i = 1; i <= SITE_COUNT; i++) {
+            SiteMessage message = send(i, flyweightMessage.reset(isDeltaDump ? SiteMessage.MessageType.DUMP_DELTA
+                    : SiteMessage.MessageType.DUMP, 0, 0, 0));
+            if (output != null && message.getText() != null) {
+                output.println(message.getText());
+            }
+        }
+    }
+
+    /**
+     * Writes the committed values of all copies of all variables at all sites to a channel in
+     * the format of dump, a chunk at a time. This reads the sites directly, since it runs after
+     * the transport is closed.
+     * @param channel channel
+     * @throws IOException if fails to write
+     */
+    public void export(WritableByteChannel channel) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocateDirect(EXPORT_CHUNK_SIZE);
+        for (int i = 1; i <= SITE_COUNT; i++) {
+            sites.get(i).export(channel, chunk);
+        }
+        DataManager.flush(channel, chunk);
+    }
+
+    /**
+     * Gives the number of reads served by each site. This reads the sites directly, since it
+     * runs after the transport is closed.
+     */
+    public void printReadDistribution() {
+        List<String> readStrings = new ArrayList<>();
+        for (int i = 1; i <= SITE_COUNT; i++) {
+            readStrings.add(String.format("site %d: %d", i, sites.get(i).getReadCount()));
+        }
+        if (output != null) {
+            output.println(String.format("reads - %s", String.join(", ", readStrings)));
+        }
+    }
 
-    public TransactionManager() {
-        sites = new HashMap<>();
+    /**
+     * Gives the number of committed values spilled by each site and the segments holding them, if
+     * any value is spilled. This reads the sites directly, since it runs after the transport is
+     * closed.
+     */
+    public void printVersionSpillStats() {
+        List<String> spillStrings = new ArrayList<>();
         for (int i = 1; i <= SITE_COUNT; i++) {
-            sites.put(i, new DataManager(i));
+            VersionSegments segments = sites.get(i).getVersionSegments();
+            if (segments != null && segments.getSpilledCount() > 0) {
+                spillStrings.add(String.format("site %d: %d in %d segments", i, segments.getSpilledCount(),
+                        segments.getSegmentCount()));
+            }
+        }
+        if (!spillStrings.isEmpty() && output != null) {
+            output.println(String.format("spilled versions - %s", String.join(", ", spillStrings)));
         }
-        transactions = new HashMap<>();
-        waitingOperations = new ArrayList<>();
-        waitsForGraph = new HashMap<>();
     }
 
     /**
-     * Begins a new transaction if not exists.
-     * @param tid transactionId
-     * @param ts timestamp
+     * Gives the number of round trips and messages to sites, and the time spent waiting for them.
      */
-    public void begin(int tid, int ts) {
-        if (!transactions.containsKey(tid)) {
-            transactions.put(tid, new Transaction(tid, ts, Transaction.TransactionType.READ_WRITE));
-            waitsForGraph.put(tid, new HashSet<>());
-            System.out.println(String.format("T%d begins", tid));
+    public void printTransportStats() {
+        String stats = String.format("transport - round trips: %d, messages: %d, wait: %.3f ms",
+                transport.getRoundTripCount(), transport.getMessageCount(), transport.getWaitNanos() / 1e6);
+        if (partitions.size() > 1) {
+            stats = String.format("partition %d %s, probes: %d", partitionId, stats, probeCount);
+        }
+        if (output != null) {
+            output.println(stats);
         }
     }
 
     /**
-     * Begins a new read-only transaction if not exists.
-     * @param tid transactionId
-     * @param ts timestamp
+     * Executes a site failure event. Under quorum replication, only transactions holding locks
+     * on the site abort, read locks included, since the locks they lose could let a conflicting
+     * write through before they commit. The site itself remembers them and votes no on their
+     * commit after it recovers. Read-only transactions take no locks and are served by the other
+     * replicas.
+     * @param sid siteId
      */
-    public void beginRO(int tid, int ts) {
-        if (!transactions.containsKey(tid)) {
-            transactions.put(tid, new Transaction(tid, ts, Transaction.TransactionType.READ_ONLY));
-            System.out.println(String.format("T%d begins and is read-only", tid));
+    public void fail(int sid) {
+        if (sites.containsKey(sid)) {
+            SiteMessage message = send(sid, flyweightMessage.reset(SiteMessage.MessageType.FAIL, 0, 0, 0));
+            for (TransactionManager partition : partitions) {
+                PartitionMessage failure = new PartitionMessage(PartitionMessage.MessageType.FAIL, 0);
+                failure.setFailedSite(sid, ReplicationMode.AVAILABLE_COPIES.equals(replicationMode) ? null
+                        : message.getLockHolders(), message.getLockHolderCount());
+                partition.handle(failure);
+            }
+            activeSiteIds.clear(sid);
+            if (output != null) {
+                output.println(String.format("site %d fails", sid));
+            }
         }
     }
 
     /**
-     * Ends a transaction if exists.
-     * @param tid transactionId
-     * @param ts timestamp
+     * Marks transactions of this partition aborted by a site failure, which are those that
+     * accessed the site and are not committing. Under quorum replication, only lock holders are
+     * affected, and they are not marked aborted but noted to have lost locks on the site: the
+     * site votes no on their commit once it recovers, and they abort at the end if it is still
+     * down and cannot vote.
+     * @param failure failure message
      */
-    public void end(int tid, int ts) {
-        if (transactions.containsKey(tid)) {
-            if (transactions.get(tid).isAborted()) {
-                System.out.println(String.format("T%d aborts due to previous access of a down site", tid));
-                abort(tid);
-            } else {
-                if (Transaction.TransactionType.READ_WRITE.equals(transactions.get(tid).getType())) {
-                    for (Integer siteId : transactions.get(tid).getAccessedSites()) {
-                        sites.get(siteId).commit(tid, ts);
-                    }
+    private void abortOnFailure(PartitionMessage failure) {
+        for (Transaction transaction : transactions.values()) {
+            if (transaction.hasAccessedSite(failure.getSiteId()) && !transaction.isCommitting()
+                    && failure.isLockHolder(transaction.getId())) {
+                if (ReplicationMode.AVAILABLE_COPIES.equals(replicationMode)) {
+                    transaction.setAborted();
+                } else {
+                    transaction.addLockLossSite(failure.getSiteId());
                 }
-                System.out.println(String.format("T%d commits", tid));
-                transactions.remove(tid);
-                removeFromWaitsForGraph(tid);
-                retry();
             }
         }
     }
 
     /**
-     * Reads value from a variable.
-     * @param tid transactionId
-     * @param vid variableId
-     * @param ts timestamp
+     * Returns whether a site that failed while holding locks of a transaction is still down, so
+     * that it cannot vote on the commit of the transaction.
+     * @param transaction transaction
+     * @return boolean
      */
-    public void read(int tid, int vid, int ts) {
-        if (transactions.containsKey(tid)) {
-            Operation operation = new Operation(ts, tid, vid, Operation.OperationType.READ, 0);
-            Transaction transaction = transactions.get(tid);
-            Integer conflictTransactionId = getConflictWriteOperationWaitingBefore(tid, vid, ts);
-            if (conflictTransactionId != null) {
-                addToWaitsForGraphFromWaitingOperations(tid, conflictTransactionId);
-            } else {
-                for (int i = 1; i <= SITE_COUNT; i++) {
-                    if (sites.get(i).canRead(transaction.getType(), operation)) {
-                        int value = sites.get(i).read(transaction.getType(), transaction.getTimestamp(), operation);
-                        transaction.addAccessedSite(i);
-                        transaction.unblock();
-                        System.out.println(String.format("T%d reads x%d: %d", tid, vid, value));
-                        return;
-                    }
-                }
-                addToWaitsForGraphFromExecutedOperations(tid, vid);
+    private boolean hasLockLossSiteDown(Transaction transaction) {
+        BitSet lockLossSites = transaction.getLockLossSites();
+        for (int sid = lockLossSites.nextSetBit(0); sid >= 0; sid = lockLossSites.nextSetBit(sid + 1)) {
+            if (!isActive(sid)) {
+                return true;
             }
-            if (!transaction.isBlocked()) {
-                waitingOperations.add(operation);
-                transaction.block();
-                System.out.println(String.format("T%d blocked", tid));
+        }
+        return false;
+    }
+
+    /**
+     * Executes a site recovery event.
+     * @param sid siteId.
+     */
+    public void recover(int sid) {
+        if (sites.containsKey(sid)) {
+            send(sid, flyweightMessage.reset(SiteMessage.MessageType.RECOVER, 0, 0, 0));
+            activeSiteIds.set(sid);
+            if (output != null) {
+                output.println(String.format("site %d recovers", sid));
             }
-            detectDeadlock(tid);
         }
+        retryAll();
     }
 
     /**
-     * Writes value to a variable for all copies stored in all available sites.
-     * @param tid transactionId
-     * @param vid variableId
-     * @param v value
-     * @param ts timestamp
+     * Advances time by one tick for all partitions.
      */
-    public void write(int tid, int vid, int v, int ts) {
-        if (transactions.containsKey(tid)) {
-            Operation operation = new Operation(ts, tid, vid, Operation.OperationType.WRITE, v);
-            Transaction transaction = transactions.get(tid);
-            Integer conflictTransactionId = getConflictOperationWaitingBefore(tid, vid, ts);
-            if (conflictTransactionId != null && waitsForGraph.get(conflictTransactionId).size() > 0) {
-                addToWaitsForGraphFromWaitingOperations(tid, conflictTransactionId);
-            } else {
-                boolean canWrite = true;
-                for (DataManager site : sites.values()) {
-                    if (site.isActive() && site.containsVariable(vid)) {
-                        canWrite = canWrite && site.canWrite(transaction.getType(), operation);
-                    }
-                }
-                if (canWrite) {
-                    for (DataManager site : sites.values()) {
-                        if (site.isActive() && site.containsVariable(vid)) {
-                            site.write(transaction.getType(), operation);
-                            transaction.addAccessedSite(site.getId());
-                        }
-                    }
-                    transaction.unblock();
-                    System.out.println(String.format("T%d writes x%d: %d", tid, vid, v));
-                    return;
-                }
-                addToWaitsForGraphFromExecutedOperations(tid, vid);
+    public void tickAll() {
+        if (stats != null) {
+            stats.tick();
+        }
+        for (TransactionManager partition : partitions) {
+            partition.tick();
+        }
+        if (admissionController != null) {
+            int blockedCount = 0;
+            for (TransactionManager partition : partitions) {
+                PartitionMessage message = new PartitionMessage(PartitionMessage.MessageType.COUNT_BLOCKED, 0);
+                partition.handle(message);
+                blockedCount += message.getCount();
             }
-            if (!transaction.isBlocked()) {
-                waitingOperations.add(operation);
-                transaction.block();
-                System.out.println(String.format("T%d blocked", tid));
+            admissionController.tick(blockedCount);
+            runAdmittedCommands();
+        }
+    }
+
+    /**
+     * Admits queued begins within the limit, and runs deferred commands of admitted transactions
+     * that are not blocked, until none can run.
+     */
+    private void runAdmittedCommands() {
+        boolean isProgress = true;
+        while (isProgress) {
+            isProgress = false;
+            admissionController.admitQueued();
+            for (int tid : admissionController.getAdmittedTransactionIds()) {
+                if (!sendToOwner(new PartitionMessage(PartitionMessage.MessageType.IS_BLOCKED, tid)).getResult()) {
+                    admissionController.runNext(tid);
+                    isProgress = true;
+                }
             }
-            detectDeadlock(tid);
         }
     }
 
     /**
-     * Gives the committed values of all copies of all variables at all sites, including sites
-     * that are down.
+     * Gives the stats of admission control, if it is on.
      */
-    public void dump() {
-        for (int i = 1; i <= SITE_COUNT; i++) {
-            sites.get(i).dump();
+    public void printAdmissionStats() {
+        if (admissionController != null && output != null) {
+            output.println(admissionController.getStats());
         }
     }
 
     /**
-     * Executes a site failure event.
-     * @param sid siteId
+     * Advances time by one tick. Blocked transactions age under the priority scheduler, and
+     * pending commit decisions are forced once they have waited long enough. Variables left
+     * unreadable on recovered sites are copied from an up-to-date replica in the background by
+     * the first partition, and operations waiting for them are retried. A variable is skipped
+     * while any replica, failed or not, holds a write lock or a prepared write on it, since the
+     * commit of that writer does not reach a recovered site it never accessed.
      */
-    public void fail(int sid) {
-        if (sites.containsKey(sid)) {
-            sites.get(sid).fail();
+    public void tick() {
+        if (Scheduler.PRIORITY.equals(scheduler)) {
             for (Transaction transaction : transactions.values()) {
-                if (transaction.hasAccessedSite(sid)) {
-                    transaction.setAborted();
+                transaction.age();
+            }
+        }
+        coordinatorLog.tick();
+        if (coordinatorLog.isGroupReady()) {
+            completeCommits();
+        }
+        if (partitions.get(0) != this) {
+            return;
+        }
+        int caughtUpCount = 0;
+        for (int i = 1; i <= SITE_COUNT && caughtUpCount < catchUpRate; i++) {
+            if (!isActive(i)) {
+                continue;
+            }
+            SiteMessage unreadable = send(i, new SiteMessage(SiteMessage.MessageType.GET_UNREADABLE_VARIABLES, 0, 0, 0));
+            for (int j = 0; j < unreadable.getVariableIdCount() && caughtUpCount < catchUpRate; j++) {
+                int vid = unreadable.getVariableIds()[j];
+                if (!hasPendingWriter(vid) && catchUp(i, vid)) {
+                    caughtUpCount++;
                 }
             }
-            System.out.println(String.format("site %d fails", sid));
+        }
+        if (caughtUpCount > 0) {
+            retryAll();
         }
     }
 
     /**
-     * Executes a site recovery event.
-     * @param sid siteId.
+     * Returns whether any replica of a variable holds a write lock or a prepared write on it.
+     * @param vid variableId
+     * @return boolean
      */
-    public void recover(int sid) {
-        if (sites.containsKey(sid)) {
-            sites.get(sid).recover();
-            System.out.println(String.format("site %d recovers", sid));
+    private boolean hasPendingWriter(int vid) {
+        List<Integer> siteIds = new ArrayList<>();
+        for (int sid = 1; sid <= SITE_COUNT; sid++) {
+            if (replicaSiteIds[vid].get(sid)) {
+                siteIds.add(sid);
+            }
+        }
+        for (SiteMessage message : broadcast(siteIds,
+                sid -> new SiteMessage(SiteMessage.MessageType.IS_WRITE_LOCKED, 0, vid, 0)).values()) {
+            if (message.getResult()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies committed values of a variable to a recovered site from the first other replica
+     * that is up to date and has no pending writer.
+     * @param sid siteId of the recovered site
+     * @param vid variableId
+     * @return whether the variable is caught up
+     */
+    private boolean catchUp(int sid, int vid) {
+        for (int sourceSiteId = 1; sourceSiteId <= SITE_COUNT; sourceSiteId++) {
+            if (sourceSiteId != sid && replicaSiteIds[vid].get(sourceSiteId)) {
+                SiteMessage message = new SiteMessage(SiteMessage.MessageType.CATCH_UP, 0, vid, 0);
+                message.setSourceSiteId(sourceSiteId);
+                if (send(sid, message).getResult()) {
+                    if (output != null) {
+                        output.println(String.format("site %d catches up x%d from site %d", sid, vid, sourceSiteId));
+                    }
+                    return true;
+                }
+            }
         }
-        retry();
+        return false;
     }
 
     /**
@@ -193,74 +1789,307 @@ public class TransactionManager {
      * @param tid transactionId
      */
     private void abort(int tid) {
-        for (DataManager site : sites.values()) {
-            site.abort(tid);
+        FlightEvents.AbortEvent event = new FlightEvents.AbortEvent();
+        event.begin();
+        if (transactions.containsKey(tid)) {
+            transactions.get(tid).setAborted();
+            if (admissionController != null
+                    && Transaction.TransactionType.READ_WRITE.equals(transactions.get(tid).getType())) {
+                admissionController.release(false);
+            }
         }
-        waitingOperations.removeIf(operation -> operation.getTransactionId() == tid);
+        broadcast(sites.keySet(), sid -> new SiteMessage(SiteMessage.MessageType.ABORT, tid, 0, 0));
+        removeWaitingOperations(tid);
         transactions.remove(tid);
+        transactionOutputs.remove(tid);
         removeFromWaitsForGraph(tid);
-        retry();
+        retryAll();
+        if (event.shouldCommit()) {
+            event.transactionId = tid;
+            event.commit();
+        }
+    }
+
+    /**
+     * Retries waiting operations of all partitions by the scheduler.
+     */
+    private void retryAll() {
+        FlightEvents.RetryEvent event = new FlightEvents.RetryEvent();
+        event.begin();
+        int waitingBeforeCount = event.isEnabled() ? getWaitingOperationCount() : 0;
+        if (Scheduler.PRIORITY.equals(scheduler)) {
+            retryInOrder(Comparator.comparingInt((Operation o) -> -getEffectivePriority(o.getTransactionId()))
+                    .thenComparingLong(Operation::getTimestamp));
+        } else if (partitions.size() > 1) {
+            retryInOrder(Comparator.comparingLong(Operation::getTimestamp));
+        } else {
+            retry();
+        }
+        if (event.shouldCommit()) {
+            event.waitingBeforeCount = waitingBeforeCount;
+            event.waitingAfterCount = getWaitingOperationCount();
+            event.commit();
+        }
+    }
+
+    /**
+     * Gets the number of waiting operations of all partitions.
+     * @return count
+     */
+    private int getWaitingOperationCount() {
+        int count = 0;
+        for (TransactionManager partition : partitions) {
+            PartitionMessage message = new PartitionMessage(PartitionMessage.MessageType.COUNT_WAITING, 0);
+            partition.handle(message);
+            count += message.getCount();
+        }
+        return count;
     }
 
     /**
-     * Retries waiting operations by time order.
+     * Retries waiting operations by time order. A retry may find a deadlock and abort a
+     * transaction, which retries again, so the operations waiting at the start are retried from a
+     * copy, and waiting operations removed by an abort during the retry are skipped.
      */
     private void retry() {
+        for (Operation operation : new ArrayList<>(waitingOperations)) {
+            retryWaitingOperation(operation);
+        }
+    }
+
+    /**
+     * Gets waiting operations of this partition whose transactions still exist. An operation
+     * left waiting by a transaction that ended while blocked is never retried.
+     * @return operations
+     */
+    private List<Operation> getRetriableOperations() {
+        List<Operation> operations = new ArrayList<>();
+        for (Operation operation : waitingOperations) {
+            if (transactions.containsKey(operation.getTransactionId())) {
+                operations.add(operation);
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * Retries an operation of this partition if it is still waiting, and stops waiting if its
+     * transaction is no longer blocked.
+     * @param operation operation
+     */
+    private void retryWaitingOperation(Operation operation) {
+        int tid = operation.getTransactionId();
+        if (waitingOperations.contains(operation) && transactions.containsKey(tid)) {
+            if (operation.isRead()) {
+                read(operation);
+            } else {
+                write(operation);
+            }
+            if (transactions.containsKey(tid) && !transactions.get(tid).isBlocked()
+                    && waitingOperations.remove(operation)) {
+                countWaitingOperation(operation.getVariableId(), -1);
+            }
+        }
+    }
+
+    /**
+     * Adds an operation to the waiting operations of this partition.
+     * @param operation operation
+     */
+    private void addWaitingOperation(Operation operation) {
+        waitingOperations.add(operation);
+        countWaitingOperation(operation.getVariableId(), 1);
+    }
+
+    /**
+     * Removes the waiting operations of a transaction.
+     * @param tid transactionId
+     */
+    private void removeWaitingOperations(int tid) {
         Iterator<Operation> iterator = waitingOperations.iterator();
         while (iterator.hasNext()) {
             Operation operation = iterator.next();
-            if (transactions.containsKey(operation.getTransactionId())) {
-                if (Operation.OperationType.READ.equals(operation.getType())) {
-                    read(operation.getTransactionId(), operation.getVariableId(), operation.getTimestamp());
-                } else {
-                    write(operation.getTransactionId(), operation.getVariableId(), operation.getValue(), operation.getTimestamp());
-                }
-                if (!transactions.get(operation.getTransactionId()).isBlocked()) {
-                    iterator.remove();
-                }
+            if (operation.getTransactionId() == tid) {
+                iterator.remove();
+                countWaitingOperation(operation.getVariableId(), -1);
+            }
+        }
+    }
+
+    /**
+     * Counts an operation of this partition starting or stopping to wait on a variable, and tells
+     * the owner of the variable when this partition starts or stops having operations waiting on
+     * it.
+     * @param vid variableId
+     * @param delta 1 when the operation starts waiting, -1 when it stops
+     */
+    private void countWaitingOperation(int vid, int delta) {
+        int slot = getVariableSlot(vid);
+        waitingCounts[slot] += delta;
+        if (waitingCounts[slot] == 0 || (delta > 0 && waitingCounts[slot] == 1)) {
+            boolean isWaiting = waitingCounts[slot] > 0;
+            TransactionManager owner = getVariableOwner(vid);
+            if (owner == this) {
+                waitingPartitionIds[slot].set(partitionId, isWaiting);
+            } else {
+                PartitionMessage message = new PartitionMessage(isWaiting ? PartitionMessage.MessageType.START_WAITING
+                        : PartitionMessage.MessageType.STOP_WAITING, 0);
+                message.setWaitingPartition(vid, partitionId);
+                owner.handle(message);
             }
         }
     }
 
+    /**
+     * Retries waiting operations of all partitions in an order, which is by effective priority
+     * of their transactions and then by time for the priority scheduler, and by time across
+     * partitions otherwise. Each operation is retried by the partition owning it, which skips it
+     * if it was removed by an abort during the retry.
+     * @param order order of operations
+     */
+    private void retryInOrder(Comparator<Operation> order) {
+        List<Operation> operations = new ArrayList<>();
+        for (TransactionManager partition : partitions) {
+            PartitionMessage message = new PartitionMessage(PartitionMessage.MessageType.GET_WAITING_OPERATIONS, 0);
+            partition.handle(message);
+            operations.addAll(message.getOperations());
+        }
+        operations.sort(order);
+        for (Operation operation : operations) {
+            PartitionMessage message = new PartitionMessage(PartitionMessage.MessageType.RETRY, operation.getTransactionId());
+            message.setOperation(operation);
+            sendToOwner(message);
+        }
+    }
+
     /**
      * Gets the transactionId of conflict write operation right before the new operation that
-     * accesses the same variable.
+     * accesses the same variable, among waiting operations of all partitions. A read for update
+     * also conflicts with waiting reads for update.
      * @param tid transactionId
      * @param vid variableId
      * @param ts timestamp
+     * @param isUpdate whether the new operation is a read for update
      * @return conflictTransactionId
      */
-    private Integer getConflictWriteOperationWaitingBefore(int tid, int vid, int ts) {
-        Integer conflictTransactionId = null;
-        for (Operation operation : waitingOperations) {
-            if (operation.getTimestamp() >= ts) {
-                break;
-            } else if (Operation.OperationType.WRITE.equals(operation.getType()) &&
-                    operation.getVariableId() == vid && operation.getTransactionId() != tid) {
-                conflictTransactionId = operation.getTransactionId();
-            }
-        }
-        return conflictTransactionId;
+    private Integer getConflictWriteOperationWaitingBefore(int tid, int vid, long ts, boolean isUpdate) {
+        return getConflictWaitingBefore(true, tid, vid, ts, isUpdate);
     }
 
     /**
      * Gets the transactionId of conflict operation right before the new operation that accesses
-     * the same variable.
+     * the same variable, among waiting operations of all partitions.
      * @param tid transactionId
      * @param vid variableId
      * @param ts timestamp
      * @return conflictTransactionId
      */
-    private Integer getConflictOperationWaitingBefore(int tid, int vid, int ts) {
-        Integer conflictTransactionId = null;
-        for (Operation operation : waitingOperations) {
+    private Integer getConflictOperationWaitingBefore(int tid, int vid, long ts) {
+        return getConflictWaitingBefore(false, tid, vid, ts, false);
+    }
+
+    /**
+     * Gets the transactionId of the latest conflict operation waiting before a new operation of
+     * this partition, asking the owner of the variable.
+     * @param isWriteOnly whether only writes and, for a read for update, reads for update conflict
+     * @param tid transactionId
+     * @param vid variableId
+     * @param ts timestamp
+     * @param isUpdate whether the new operation is a read for update
+     * @return conflictTransactionId
+     */
+    private Integer getConflictWaitingBefore(boolean isWriteOnly, int tid, int vid, long ts, boolean isUpdate) {
+        int priority = Scheduler.PRIORITY.equals(scheduler) ? getEffectivePriority(tid) : 0;
+        TransactionManager owner = getVariableOwner(vid);
+        Operation conflictOperation;
+        if (owner == this) {
+            conflictOperation = getOwnedConflictWaitingBefore(isWriteOnly, tid, vid, ts, isUpdate, priority);
+        } else {
+            PartitionMessage message = new PartitionMessage(PartitionMessage.MessageType.GET_CONFLICT_WAITING_BEFORE, tid);
+            message.setVariable(vid, ts);
+            message.setUpdate(isUpdate);
+            message.setWriteOnly(isWriteOnly);
+            message.setPriority(priority);
+            owner.handle(message);
+            conflictOperation = message.getOperation();
+        }
+        return conflictOperation == null ? null : conflictOperation.getTransactionId();
+    }
+
+    /**
+     * Gets the latest conflict operation waiting before a new operation on a variable this
+     * partition owns, asking only the partitions with operations waiting on the variable.
+     * @param isWriteOnly whether only writes and, for a read for update, reads for update conflict
+     * @param tid transactionId of the new operation
+     * @param vid variableId
+     * @param ts timestamp of the new operation
+     * @param isUpdate whether the new operation is a read for update
+     * @param priority effective priority of the transaction of the new operation
+     * @return conflict operation, or null
+     */
+    private Operation getOwnedConflictWaitingBefore(boolean isWriteOnly, int tid, int vid, long ts,
+                                                    boolean isUpdate, int priority) {
+        BitSet partitionIds = waitingPartitionIds[getVariableSlot(vid)];
+        Operation conflictOperation = null;
+        for (int pid = partitionIds.nextSetBit(0); pid >= 0; pid = partitionIds.nextSetBit(pid + 1)) {
+            Operation partitionConflictOperation;
+            if (pid == partitionId) {
+                partitionConflictOperation = getPartitionConflictWaitingBefore(isWriteOnly, tid, vid, ts, isUpdate,
+                        priority);
+            } else {
+                PartitionMessage message = new PartitionMessage(PartitionMessage.MessageType.SCAN_CONFLICT_WAITING_BEFORE,
+                        tid);
+                message.setVariable(vid, ts);
+                message.setUpdate(isUpdate);
+                message.setWriteOnly(isWriteOnly);
+                message.setPriority(priority);
+                partitions.get(pid).handle(message);
+                partitionConflictOperation = message.getOperation();
+            }
+            conflictOperation = getLaterOperation(conflictOperation, partitionConflictOperation);
+        }
+        return conflictOperation;
+    }
+
+    /**
+     * Gets the latest conflict operation waiting before a new operation among waiting operations
+     * of this partition.
+     * @param isWriteOnly whether only writes and, for a read for update, reads for update conflict
+     * @param tid transactionId of the new operation
+     * @param vid variableId
+     * @param ts timestamp of the new operation
+     * @param isUpdate whether the new operation is a read for update
+     * @param priority effective priority of the transaction of the new operation
+     * @return conflict operation, or null
+     */
+    private Operation getPartitionConflictWaitingBefore(boolean isWriteOnly, int tid, int vid, long ts,
+                                                        boolean isUpdate, int priority) {
+        Operation conflictOperation = null;
+        for (int i = 0; i < waitingOperations.size(); i++) {
+            Operation operation = waitingOperations.get(i);
             if (operation.getTimestamp() >= ts) {
                 break;
-            } else if (operation.getVariableId() == vid && operation.getTransactionId() != tid) {
-                conflictTransactionId = operation.getTransactionId();
+            } else if ((!isWriteOnly || !operation.isRead() || isUpdate &&
+                    Operation.OperationType.READ_FOR_UPDATE.equals(operation.getType())) &&
+                    operation.getVariableId() == vid && operation.getTransactionId() != tid &&
+                    holdsBack(priority, operation)) {
+                conflictOperation = operation;
             }
         }
-        return conflictTransactionId;
+        return conflictOperation;
+    }
+
+    /**
+     * Gets the later one of two operations from different partitions.
+     * @param o1 operation, or null
+     * @param o2 operation, or null
+     * @return later operation
+     */
+    private Operation getLaterOperation(Operation o1, Operation o2) {
+        if (o1 == null || (o2 != null && o2.getTimestamp() > o1.getTimestamp())) {
+            return o2;
+        }
+        return o1;
     }
 
     /**
@@ -281,83 +2110,164 @@ public class TransactionManager {
      */
     private void addToWaitsForGraphFromExecutedOperations(int tid, int vid) {
         if (waitsForGraph.containsKey(tid)) {
-            for (DataManager site : sites.values()) {
-                if (site.isActive() && site.containsVariable(vid)) {
-                    List<Integer> conflictTransactionIds = site.getLockHolders(vid);
-                    conflictTransactionIds.removeIf(conflictTransactionId -> conflictTransactionId == tid);
-                    waitsForGraph.get(tid).addAll(conflictTransactionIds);
+            for (SiteMessage message : broadcast(getAvailableSiteIds(vid),
+                    sid -> new SiteMessage(SiteMessage.MessageType.GET_LOCK_HOLDERS, tid, vid, 0)).values()) {
+                for (int i = 0; i < message.getLockHolderCount(); i++) {
+                    if (message.getLockHolders()[i] != tid) {
+                        waitsForGraph.get(tid).add(message.getLockHolders()[i]);
+                    }
                 }
             }
         }
     }
 
     /**
-     * Removes all conflict relations from waits-for graph.
+     * Returns whether a transaction is waiting for other transactions.
+     * @param tid transactionId
+     * @return boolean
+     */
+    private boolean isWaiting(int tid) {
+        return waitsForGraph.containsKey(tid) && waitsForGraph.get(tid).size() > 0;
+    }
+
+    /**
+     * Removes all conflict relations from waits-for graphs of all partitions.
      * @param tid transactionId
      */
     private void removeFromWaitsForGraph(int tid) {
         waitsForGraph.remove(tid);
-        for (Set transactionIds : waitsForGraph.values()) {
+        for (TransactionManager partition : partitions) {
+            if (partition == this) {
+                removeWaitsForEdges(tid);
+            } else {
+                partition.handle(new PartitionMessage(PartitionMessage.MessageType.REMOVE_WAITS_FOR, tid));
+            }
+        }
+    }
+
+    /**
+     * Removes conflict relations waiting for a transaction from the waits-for graph of this
+     * partition.
+     * @param tid transactionId
+     */
+    private void removeWaitsForEdges(int tid) {
+        for (Set<Integer> transactionIds : waitsForGraph.values()) {
             transactionIds.remove(tid);
         }
     }
 
     /**
-     * Detects deadlocks in waits-for graph and aborts the youngest transaction if there is.
+     * Detects deadlocks in waits-for graph and aborts a victim chosen by the scheduler if there is.
      * @param tid transactionId
      */
     private void detectDeadlock(int tid) {
         if (waitsForGraph.containsKey(tid)) {
-            List<Integer> cycle = new ArrayList<>();
-            List<Integer> visited = new ArrayList<>();
-            if (isCyclic(tid, cycle, visited)) {
-                int youngestTransactionId = getYoungestTransactionId(cycle);
-                System.out.println(String.format("T%d aborts due to deadlock", youngestTransactionId));
-                abort(youngestTransactionId);
+            FlightEvents.DeadlockDetectionEvent event = new FlightEvents.DeadlockDetectionEvent();
+            event.begin();
+            PartitionMessage probe = PartitionMessage.newProbe(tid);
+            boolean isDeadlocked = isCyclic(probe);
+            List<PartitionMessage.Frame> cycle = probe.getPath();
+            event.end();
+            event.transactionId = tid;
+            event.cycleLength = isDeadlocked ? cycle.size() : 0;
+            if (isDeadlocked) {
+                int victimTransactionId = Scheduler.PRIORITY.equals(scheduler) ? getVictimTransactionId(cycle)
+                        : getYoungestTransactionId(cycle);
+                PrintStream transactionOutput = getOutput(victimTransactionId);
+                if (transactionOutput != null) {
+                    transactionOutput.println(String.format("T%d aborts due to deadlock", victimTransactionId));
+                }
+                if (admissionController != null) {
+                    admissionController.recordDeadlock();
+                }
+                recordAbort(victimTransactionId, EngineStats.AbortReason.DEADLOCK);
+                sendToOwner(new PartitionMessage(PartitionMessage.MessageType.ABORT, victimTransactionId));
+                event.victimTransactionId = victimTransactionId;
             }
+            event.commit();
         }
     }
 
     /**
-     * Determine whether there is a cycle start from the input transactionId.
-     * @param tid transactionId
-     * @param cycle list of transactionIds that form the cycle
-     * @param visited list of transactionIds that visited
+     * Determine whether there is a cycle start from the transaction a probe is passed to. The
+     * transaction is added to the path of the probe, and a waits-for edge to a transaction of
+     * another partition is followed by sending the probe to that partition.
+     * @param probe probe
      * @return boolean
      */
-    private boolean isCyclic(int tid, List<Integer> cycle, List<Integer> visited) {
-        if (cycle.contains(tid)) {
+    private boolean isCyclic(PartitionMessage probe) {
+        int tid = probe.getTransactionId();
+        if (probe.isOnPath(tid)) {
             return true;
         }
-        if (visited.contains(tid)) {
+        if (probe.getVisited().contains(tid) || !waitsForGraph.containsKey(tid)) {
             return false;
         }
-        visited.add(tid);
-        cycle.add(tid);
+        probe.getVisited().add(tid);
+        probe.getPath().add(getFrame(tid));
         for (int conflictTransactionId : waitsForGraph.get(tid)) {
-            if (isCyclic(conflictTransactionId, cycle, visited)) {
-                return true;
+            probe.setTransactionId(conflictTransactionId);
+            if (getOwner(conflictTransactionId) == this) {
+                if (isCyclic(probe)) {
+                    return true;
+                }
+            } else {
+                probeCount++;
+                if (sendToOwner(probe).getResult()) {
+                    return true;
+                }
             }
         }
-        cycle.remove(Integer.valueOf(tid));
+        probe.getPath().remove(probe.getPath().size() - 1);
         return false;
     }
 
     /**
      * Gets the youngest transactionId.
-     * @param cycle list of transactionIds that form a cycle
+     * @param cycle transactions that form a cycle
      * @return youngestTransactionId
      */
-    private int getYoungestTransactionId(List<Integer> cycle) {
-        int timestamp = -1;
+    private int getYoungestTransactionId(List<PartitionMessage.Frame> cycle) {
+        long timestamp = -1;
         int transactionId = -1;
-        for (int conflictTransactionId : cycle) {
-            if (transactions.get(conflictTransactionId).getTimestamp() > timestamp) {
-                timestamp = transactions.get(conflictTransactionId).getTimestamp();
-                transactionId = conflictTransactionId;
+        for (PartitionMessage.Frame frame : cycle) {
+            if (frame.getTimestamp() > timestamp) {
+                timestamp = frame.getTimestamp();
+                transactionId = frame.getTransactionId();
             }
         }
         return transactionId;
     }
 
+    /**
+     * Gets the transactionId of the victim with the lowest effective priority, then the fewest
+     * operations executed, then the youngest one.
+     * @param cycle transactions that form a cycle
+     * @return victimTransactionId
+     */
+    private int getVictimTransactionId(List<PartitionMessage.Frame> cycle) {
+        PartitionMessage.Frame victim = null;
+        for (PartitionMessage.Frame frame : cycle) {
+            if (victim == null || isBetterVictim(frame, victim)) {
+                victim = frame;
+            }
+        }
+        return victim.getTransactionId();
+    }
+
+    /**
+     * Returns whether a transaction is a better victim than another one.
+     * @param transaction transaction
+     * @param victim victim so far
+     * @return boolean
+     */
+    private boolean isBetterVictim(PartitionMessage.Frame transaction, PartitionMessage.Frame victim) {
+        if (transaction.getEffectivePriority() != victim.getEffectivePriority()) {
+            return transaction.getEffectivePriority() < victim.getEffectivePriority();
+        }
+        if (transaction.getExecutedOperationCount() != victim.getExecutedOperationCount()) {
+            return transaction.getExecutedOperationCount() < victim.getExecutedOperationCount();
+        }
+        return transaction.getTimestamp() > victim.getTimestamp();
+    }
 }
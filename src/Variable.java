@@ -1,26 +1,46 @@
-import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.IntUnaryOperator;
 
 /**
- * This class represents variable with value to commit and committed values.
+ * This class represents variable with value to commit and committed values. Once versions are
+ * spilled, recent committed values are kept in memory, and older ones in segments of the site,
+ * indexed sparsely by the first timestamp of each run.
  * @version 12/02/2019
  * @author Xinyi Liu, Ming Xu
  */
 public class Variable {
     private int id;
     private int valueToCommit;
+    private boolean isBlobToCommit;
     private int transactionIdToCommit;
     private int lastCommittedValue;
-    private Map<Integer, Integer> committedValues;  // <timestamp, committedValue>
+    private boolean isLastCommittedBlob;
+    private NavigableMap<Long, Integer> committedValues;  // <timestamp, committedValue>
+    private Set<Long> blobCommitTimestamps;      // timestamps of committed values that are blob handles
+    private VersionSegments spilledVersions;    // null if all committed values are kept in memory
+    private NavigableMap<Long, Long> spilledRuns;   // <first timestamp, position of run>
+    private int maxInMemoryVersionCount;
     private boolean isReadable;
+    private int version;
+    private int versionToCommit;
 
     public Variable(int vid) {
         id = vid;
         valueToCommit = 10 * vid;
         lastCommittedValue = 10 * vid;
-        committedValues = new LinkedHashMap<>();
-        committedValues.put(0, lastCommittedValue);
+        committedValues = new TreeMap<>();
+        committedValues.put(0L, lastCommittedValue);
+        blobCommitTimestamps = new HashSet<>();
+        spilledVersions = null;
+        spilledRuns = null;
+        maxInMemoryVersionCount = 0;
         isReadable = true;
+        version = 0;
+        versionToCommit = 0;
     }
 
     /**
@@ -39,6 +59,14 @@ public class Variable {
         return valueToCommit;
     }
 
+    /**
+     * Returns whether value to commit is a blob handle.
+     * @return boolean
+     */
+    public boolean isBlobToCommit() {
+        return isBlobToCommit;
+    }
+
     /**
      * Gets transactionId of value to commit.
      * @return transactionId
@@ -55,21 +83,93 @@ public class Variable {
         return lastCommittedValue;
     }
 
+    /**
+     * Returns whether value from last commit is a blob handle.
+     * @return boolean
+     */
+    public boolean isLastCommittedBlob() {
+        return isLastCommittedBlob;
+    }
+
     /**
      * Gets value from last commit before a timestamp.
      * @param ts timestamp
      * @return committedValue before timestamp
      */
-    public int getLastCommittedValueBefore(int ts) {
-        int committedValue = 0;
-        for (int timestamp : committedValues.keySet()) {
-            if (timestamp <= ts) {
-                committedValue = committedValues.get(timestamp);
-            } else {
-                break;
-            }
+    public int getLastCommittedValueBefore(long ts) {
+        if (isSpilledBefore(ts)) {
+            long record = getSpilledRecordBefore(ts);
+            return record == VersionSegments.NO_RECORD ? 0 : spilledVersions.getValue(record);
         }
-        return committedValue;
+        Long commitTimestamp = getCommitTimestampKeyBefore(ts);
+        return commitTimestamp == null ? 0 : committedValues.get(commitTimestamp);
+    }
+
+    /**
+     * Gets timestamp of last commit before a timestamp.
+     * @param ts timestamp
+     * @return commitTimestamp before timestamp
+     */
+    public long getLastCommitTimestampBefore(long ts) {
+        if (isSpilledBefore(ts)) {
+            long record = getSpilledRecordBefore(ts);
+            return record == VersionSegments.NO_RECORD ? 0 : spilledVersions.getTimestamp(record);
+        }
+        Long commitTimestamp = getCommitTimestampKeyBefore(ts);
+        return commitTimestamp == null ? 0 : commitTimestamp;
+    }
+
+    /**
+     * Gets the key of the last commit at or before a timestamp. A timestamp at or after the last
+     * commit, as of every read-write transaction, is answered without searching or boxing it.
+     * @param ts timestamp
+     * @return commitTimestamp, or null
+     */
+    private Long getCommitTimestampKeyBefore(long ts) {
+        Long lastCommitTimestamp = committedValues.lastKey();
+        return ts >= lastCommitTimestamp ? lastCommitTimestamp : committedValues.floorKey(ts);
+    }
+
+    /**
+     * Returns whether the last commit before a timestamp is older than all committed values kept
+     * in memory, so that it is looked up in the spilled runs.
+     * @param ts timestamp
+     * @return boolean
+     */
+    private boolean isSpilledBefore(long ts) {
+        return spilledVersions != null && ts < committedValues.firstKey();
+    }
+
+    /**
+     * Gets the spilled record of the last commit before a timestamp, from the run found in the
+     * sparse index.
+     * @param ts timestamp
+     * @return position of the record, or NO_RECORD
+     */
+    private long getSpilledRecordBefore(long ts) {
+        Map.Entry<Long, Long> run = spilledRuns.floorEntry(ts);
+        return run == null ? VersionSegments.NO_RECORD : spilledVersions.getLastRecordBefore(run.getValue(), ts);
+    }
+
+    /**
+     * Returns whether value from last commit before a timestamp is a blob handle.
+     * @param ts timestamp
+     * @return boolean
+     */
+    public boolean isCommittedBlobBefore(long ts) {
+        if (isSpilledBefore(ts)) {
+            long record = getSpilledRecordBefore(ts);
+            return record != VersionSegments.NO_RECORD && spilledVersions.isBlob(record);
+        }
+        return blobCommitTimestamps.contains(getCommitTimestampKeyBefore(ts));
+    }
+
+    /**
+     * Gets version number of last commit.
+     * @return version
+     */
+    public int getVersion() {
+        return version;
     }
 
     /**
@@ -88,6 +188,14 @@ public class Variable {
         valueToCommit = v;
     }
 
+    /**
+     * Sets whether value to commit is a blob handle.
+     * @param b isBlobToCommit
+     */
+    public void setBlobToCommit(boolean b) {
+        isBlobToCommit = b;
+    }
+
     /**
      * Sets transactionId of value to commit.
      * @param tid transactionId
@@ -97,29 +205,122 @@ public class Variable {
     }
 
     /**
-     * Performs when the site fails.
+     * Sets version number to commit. The version is increased by one on commit if this is not
+     * set to a greater one.
+     * @param ver versionToCommit
      */
-    public void fail() {
-        isReadable = false;
+    public void setVersionToCommit(int ver) {
+        versionToCommit = ver;
+    }
+
+    /**
+     * Sets this variable to be readable.
+     */
+    public void setReadable() {
+        isReadable = true;
     }
 
     /**
-     * Performs when the site recovers.
+     * Copies the committed values this variable misses from an up-to-date replica, and then sets
+     * it to be readable.
+     * @param v up-to-date replica
+     * @param copyBlob copies a blob of the replica and gives its handle on this site
      */
-    public void recover() {
-        if (id % 2 != 0) {
-            isReadable = true;
+    public void catchUp(Variable v, IntUnaryOperator copyBlob) {
+        long lastCommitTimestamp = committedValues.lastKey();
+        if (v.spilledVersions != null && lastCommitTimestamp < v.committedValues.firstKey()) {
+            Long firstRunTimestamp = v.spilledRuns.floorKey(lastCommitTimestamp);
+            for (long run : v.spilledRuns.tailMap(firstRunTimestamp == null ? lastCommitTimestamp
+                    : firstRunTimestamp, true).values()) {
+                for (int i = 0; i < VersionSegments.RUN_LENGTH; i++) {
+                    long record = VersionSegments.getRecord(run, i);
+                    long ts = v.spilledVersions.getTimestamp(record);
+                    if (ts > lastCommitTimestamp) {
+                        catchUpValue(ts, v.spilledVersions.getValue(record), v.spilledVersions.isBlob(record),
+                                copyBlob);
+                    }
+                }
+            }
         }
+        for (Map.Entry<Long, Integer> entry : v.committedValues.tailMap(lastCommitTimestamp, false).entrySet()) {
+            catchUpValue(entry.getKey(), entry.getValue(), v.blobCommitTimestamps.contains(entry.getKey()), copyBlob);
+        }
+        version = Math.max(version, v.version);
+        isReadable = true;
+    }
+
+    /**
+     * Copies a committed value this variable misses.
+     * @param ts timestamp
+     * @param v committedValue
+     * @param b whether committedValue is a blob handle
+     * @param copyBlob copies a blob of the replica and gives its handle on this site
+     */
+    private void catchUpValue(long ts, int v, boolean b, IntUnaryOperator copyBlob) {
+        lastCommittedValue = v;
+        isLastCommittedBlob = b;
+        if (isLastCommittedBlob) {
+            lastCommittedValue = copyBlob.applyAsInt(lastCommittedValue);
+            blobCommitTimestamps.add(ts);
+        }
+        committedValues.put(ts, lastCommittedValue);
+        if (spilledVersions != null) {
+            spill();
+        }
+    }
+
+    /**
+     * Keeps the newest n committed values in memory, and spills older ones to segments of the
+     * site in runs.
+     * @param segments segments of the site
+     * @param n maxInMemoryVersionCount
+     */
+    public void setVersionSpill(VersionSegments segments, int n) {
+        spilledVersions = segments;
+        spilledRuns = new TreeMap<>();
+        maxInMemoryVersionCount = n;
+        spill();
+    }
+
+    /**
+     * Spills the oldest committed values in runs while a full run can be spilled and the newest n
+     * are still kept in memory.
+     */
+    private void spill() {
+        while (committedValues.size() >= maxInMemoryVersionCount + VersionSegments.RUN_LENGTH) {
+            spilledRuns.put(committedValues.firstKey(), spilledVersions.startRun());
+            for (int i = 0; i < VersionSegments.RUN_LENGTH; i++) {
+                Map.Entry<Long, Integer> entry = committedValues.pollFirstEntry();
+                spilledVersions.append(entry.getKey(), entry.getValue(), blobCommitTimestamps.remove(entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Performs when the site fails.
+     */
+    public void fail() {
+        isReadable = false;
     }
 
     /**
      * Commits a value.
      * @param ts timestamp
      */
-    public void commit(int ts) {
+    public void commit(long ts) {
         lastCommittedValue = valueToCommit;
+        isLastCommittedBlob = isBlobToCommit;
         committedValues.put(ts, lastCommittedValue);
+        if (isBlobToCommit) {
+            blobCommitTimestamps.add(ts);
+        } else {
+            blobCommitTimestamps.remove(ts);
+        }
+        version = Math.max(version + 1, versionToCommit);
         isReadable = true;
+        if (spilledVersions != null) {
+            spill();
+        }
     }
 
     @Override
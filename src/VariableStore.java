@@ -0,0 +1,123 @@
+import java.util.function.IntUnaryOperator;
+
+/**
+ * This interface stores the values, versions and readability of the variables hosted by a site.
+ * A value is either an int or the handle of a blob in the slab allocator of the site.
+ * @version 12/07/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public interface VariableStore {
+    /**
+     * Returns whether a variable is stored.
+     * @param vid variableId
+     * @return boolean
+     */
+    boolean contains(int vid);
+
+    /**
+     * Returns whether a variable is readable.
+     * @param vid variableId
+     * @return boolean
+     */
+    boolean isReadable(int vid);
+
+    /**
+     * Sets whether a variable is readable.
+     * @param vid variableId
+     * @param r isReadable
+     */
+    void setReadable(int vid, boolean r);
+
+    /**
+     * Gets value to commit of a variable.
+     * @param vid variableId
+     * @return valueToCommit
+     */
+    int getValueToCommit(int vid);
+
+    /**
+     * Gets transactionId of value to commit of a variable.
+     * @param vid variableId
+     * @return transactionId
+     */
+    int getTransactionIdToCommit(int vid);
+
+    /**
+     * Returns whether value to commit of a variable is a blob handle.
+     * @param vid variableId
+     * @return boolean
+     */
+    boolean isBlobToCommit(int vid);
+
+    /**
+     * Sets value to commit of a variable with its transactionId and version number.
+     * @param vid variableId
+     * @param v valueToCommit
+     * @param b whether valueToCommit is a blob handle
+     * @param tid transactionId
+     * @param ver versionToCommit
+     */
+    void setValueToCommit(int vid, int v, boolean b, int tid, int ver);
+
+    /**
+     * Gets value from last commit of a variable.
+     * @param vid variableId
+     * @return lastCommittedValue
+     */
+    int getLastCommittedValue(int vid);
+
+    /**
+     * Returns whether value from last commit of a variable is a blob handle.
+     * @param vid variableId
+     * @return boolean
+     */
+    boolean isLastCommittedBlob(int vid);
+
+    /**
+     * Gets value from last commit of a variable before a timestamp.
+     * @param vid variableId
+     * @param ts timestamp
+     * @return committedValue before timestamp
+     */
+    int getLastCommittedValueBefore(int vid, long ts);
+
+    /**
+     * Returns whether value from last commit of a variable before a timestamp is a blob handle.
+     * @param vid variableId
+     * @param ts timestamp
+     * @return boolean
+     */
+    boolean isCommittedBlobBefore(int vid, long ts);
+
+    /**
+     * Gets timestamp of last commit of a variable before a timestamp.
+     * @param vid variableId
+     * @param ts timestamp
+     * @return commitTimestamp before timestamp
+     */
+    long getLastCommitTimestampBefore(int vid, long ts);
+
+    /**
+     * Gets version number of last commit of a variable.
+     * @param vid variableId
+     * @return version
+     */
+    int getVersion(int vid);
+
+    /**
+     * Commits the value to commit of a variable.
+     * @param vid variableId
+     * @param ts timestamp
+     */
+    void commit(int vid, long ts);
+
+    /**
+     * Copies the committed values a variable misses from the same variable of an up-to-date store
+     * of the same kind, and then sets it to be readable. Blob handles of the source are turned
+     * into handles of this store by copyBlob.
+     * @param vid variableId
+     * @param source up-to-date store
+     * @param copyBlob copies a blob of the source site and gives its handle on this site
+     */
+    void catchUp(int vid, VariableStore source, IntUnaryOperator copyBlob);
+}
@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class holds the cold committed values of the variables of a site in append-only segment
+ * files mapped into memory. Committed values are spilled in runs of RUN_LENGTH records ordered by
+ * timestamp, and a run never spans two segments, so a variable indexes its spilled values sparsely
+ * by the first timestamp and position of each run. Positions are global across segments. Segment
+ * files are scratch space, and are deleted when the site is closed, or when the program exits if
+ * they cannot be deleted before.
+ * @version 12/10/2019
+ * @author Xinyi Liu, Ming Xu
+ */
+public class VersionSegments {
+    public static final int RUN_LENGTH = 32;
+    public static final long NO_RECORD = -1;
+
+    private static final int RECORD_SIZE = 16;     // timestamp, committedValue, isBlob
+    private static final int SEGMENT_SIZE = 1 << 20;
+
+    private Path directory;
+    private int siteId;
+    private List<MappedByteBuffer> segments;
+    private List<Path> paths;                      // paths of segment files, in order of segments
+    private long spilledCount;
+
+    public VersionSegments(Path dir, int sid) {
+        directory = dir;
+        siteId = sid;
+        segments = new ArrayList<>();
+        paths = new ArrayList<>();
+        spilledCount = 0;
+    }
+
+    /**
+     * Starts a run of committed values, moving on to a new segment if the last one cannot hold it.
+     * @return position of the run
+     */
+    public long startRun() {
+        if (segments.isEmpty() || segments.get(segments.size() - 1).remaining() < RUN_LENGTH * RECORD_SIZE) {
+            addSegment();
+        }
+        MappedByteBuffer segment = segments.get(segments.size() - 1);
+        return (long) (segments.size() - 1) * SEGMENT_SIZE + segment.position();
+    }
+
+    /**
+     * Creates and maps a new segment file with a name of its own, so that sites of traces
+     * replayed at the same time may share a directory. The channel is closed right away, since
+     * the mapping stays valid without it.
+     */
+    private void addSegment() {
+        try {
+            Files.createDirectories(directory);
+            Path path = Files.createTempFile(directory, String.format("site%d-", siteId), ".seg");
+            path.toFile().deleteOnExit();
+            paths.add(path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends a committed value to the run being spilled.
+     * @param ts timestamp
+     * @param v committedValue
+     * @param b whether committedValue is a blob handle
+     */
+    public void append(long ts, int v, boolean b) {
+        segments.get(segments.size() - 1).putLong(ts).putInt(v).putInt(b ? 1 : 0);
+        spilledCount++;
+    }
+
+    /**
+     * Gets the segment holding a position.
+     * @param position position
+     * @return segment
+     */
+    private MappedByteBuffer getSegment(long position) {
+        return segments.get((int) (position / SEGMENT_SIZE));
+    }
+
+    /**
+     * Gets the position of a record of a run.
+     * @param run position of the run
+     * @param i index of the record in the run
+     * @return position of the record
+     */
+    public static long getRecord(long run, int i) {
+        return run + (long) i * RECORD_SIZE;
+    }
+
+    /**
+     * Gets the newest record of a run committed at or before a timestamp, by binary search.
+     * @param run position of the run
+     * @param ts timestamp
+     * @return position of the record, or NO_RECORD
+     */
+    public long getLastRecordBefore(long run, long ts) {
+        int low = 0;
+        int high = RUN_LENGTH - 1;
+        long record = NO_RECORD;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getTimestamp(getRecord(run, mid)) <= ts) {
+                record = getRecord(run, mid);
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Gets timestamp of a record.
+     * @param record position of the record
+     * @return timestamp
+     */
+    public long getTimestamp(long record) {
+        return getSegment(record).getLong((int) (record % SEGMENT_SIZE));
+    }
+
+    /**
+     * Gets committed value of a record.
+     * @param record position of the record
+     * @return committedValue
+     */
+    public int getValue(long record) {
+        return getSegment(record).getInt((int) (record % SEGMENT_SIZE) + 8);
+    }
+
+    /**
+     * Returns whether committed value of a record is a blob handle.
+     * @param record position of the record
+     * @return boolean
+     */
+    public boolean isBlob(long record) {
+        return getSegment(record).getInt((int) (record % SEGMENT_SIZE) + 12) != 0;
+    }
+
+    /**
+     * Gets number of committed values spilled.
+     * @return spilledCount
+     */
+    public long getSpilledCount() {
+        return spilledCount;
+    }
+
+    /**
+     * Gets number of segments, including those of a closed site.
+     * @return segmentCount
+     */
+    public int getSegmentCount() {
+        return paths.size();
+    }
+
+    /**
+     * Drops the mappings of the segments and deletes their files. The memory of a mapping is
+     * given back once it is garbage collected, and a file that cannot be deleted while it is
+     * still mapped is deleted when the program exits.
+     */
+    public void close() {
+        segments.clear();
+        for (Path path : paths) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                // left to deleteOnExit
+            }
+        }
+    }
+}